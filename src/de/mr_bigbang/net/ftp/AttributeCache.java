@@ -0,0 +1,246 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the attributes of files for SIZE and MDTM, shared by all sessions.
+ *
+ * Entries live for a short time only and at most maxEntries are kept, the least recently used
+ * are evicted first. The directories containing cached files are watched with a
+ * {@link WatchService}, so changes made by other processes drop the entries before they expire.
+ * Paths are only made absolute and normalized, resolving them would cost a syscall as well.
+ */
+class AttributeCache implements Runnable {
+    private static final class Entry {
+        private final BasicFileAttributes attributes;
+        private final long expires;
+
+        private Entry(final BasicFileAttributes attributes, final long expires) {
+            this.attributes = attributes;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A watched directory and the number of cached entries in it.
+     */
+    private static final class Watch {
+        private final WatchKey key;
+        private int entries = 0;
+
+        private Watch(final WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    private final int maxEntries;
+    public int getMaxEntries() { return maxEntries; }
+
+    private final long ttl;
+    /**
+     * @return Time in milliseconds an entry is used
+     */
+    public long getTtl() { return ttl; }
+
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Guarded by this
+    private final HashMap<Path, Watch> watches = new HashMap<>(); // Guarded by this
+    // Incremented by every invalidation, attributes read before are not cached
+    private long generation = 0; // Guarded by this
+
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private final AtomicLong hits = new AtomicLong();
+    public long getHits() { return hits.get(); }
+
+    private final AtomicLong misses = new AtomicLong();
+    public long getMisses() { return misses.get(); }
+
+    private final AtomicLong evictions = new AtomicLong();
+    public long getEvictions() { return evictions.get(); }
+
+    private final AtomicLong invalidations = new AtomicLong();
+    public long getInvalidations() { return invalidations.get(); }
+
+    public synchronized int getSize() { return entries.size(); }
+
+    /**
+     * @param maxEntries Number of files cached
+     * @param ttl Time in milliseconds an entry is used
+     */
+    public AttributeCache(final int maxEntries, final long ttl) throws IOException {
+        if (maxEntries <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("Size and TTL must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, "ftp-attribute-watch");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Attributes of a file, read from the file system if they aren't cached.
+     */
+    public BasicFileAttributes get(@NotNull final Path path) throws IOException {
+        var key = path.toAbsolutePath().normalize();
+        long generation;
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expires - System.nanoTime() > 0) {
+                    hits.incrementAndGet();
+                    return entry.attributes;
+                }
+                remove(key);
+            }
+            generation = this.generation;
+        }
+
+        misses.incrementAndGet();
+        var attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        put(key, attributes, generation);
+        return attributes;
+    }
+
+    private synchronized void put(@NotNull final Path key, @NotNull final BasicFileAttributes attributes, final long generation) {
+        if (generation != this.generation) {
+            // Changed while reading
+            return;
+        }
+
+        var directory = key.getParent();
+        if (directory == null) {
+            return;
+        }
+        var watch = watches.get(directory);
+        if (watch == null) {
+            try {
+                watch = new Watch(directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+            } catch (IOException | UnsupportedOperationException | ClosedWatchServiceException ex) {
+                // Other file system or out of inotify watches, don't cache what can't be invalidated
+                return;
+            }
+            watches.put(directory, watch);
+        }
+
+        if (entries.put(key, new Entry(attributes, System.nanoTime() + ttl * 1_000_000L)) == null) {
+            ++watch.entries;
+        }
+
+        // Least recently used first
+        var iterator = entries.keySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            var eldest = iterator.next();
+            iterator.remove();
+            unwatch(eldest);
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the attributes of a file after it has been changed.
+     */
+    public synchronized void invalidate(@NotNull final Path path) {
+        ++generation;
+        if (remove(path.toAbsolutePath().normalize())) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the attributes of all files in a directory, e.g. after watch events were lost.
+     */
+    private synchronized void invalidateDirectory(@NotNull final Path directory) {
+        ++generation;
+        var iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            var key = iterator.next();
+            if (directory.equals(key.getParent())) {
+                iterator.remove();
+                unwatch(key);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean remove(@NotNull final Path key) {
+        if (entries.remove(key) == null) {
+            return false;
+        }
+        unwatch(key);
+        return true;
+    }
+
+    /**
+     * Stop watching the directory of a removed entry if it was the last one.
+     */
+    private void unwatch(@NotNull final Path key) {
+        var directory = key.getParent();
+        var watch = watches.get(directory);
+        if (watch != null && --watch.entries <= 0) {
+            watch.key.cancel();
+            watches.remove(directory);
+        }
+    }
+
+    public synchronized void clear() {
+        ++generation;
+        for (var watch : watches.values()) {
+            watch.key.cancel();
+        }
+        watches.clear();
+        entries.clear();
+    }
+
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            Logger.SERVER.error("IOException: " + ex.getMessage());
+        }
+        clear();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                var key = watchService.take();
+                var directory = (Path) key.watchable();
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        invalidateDirectory(directory);
+                    } else {
+                        invalidate(directory.resolve((Path) event.context()));
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Cache closed
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AttributeCache[maxEntries=%d, ttl=%d, size=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d]",
+                getMaxEntries(), getTtl(), getSize(), getHits(), getMisses(), getEvictions(), getInvalidations());
+    }
+}
@@ -0,0 +1,41 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Checks the credentials sent with USER and PASS, shared by all sessions.
+ *
+ * Implementations have to be thread-safe. Anonymous logins are handled by the server and never
+ * reach the authenticator.
+ */
+interface Authenticator {
+    /**
+     * @return false if the user doesn't exist, USER is refused then
+     */
+    boolean isKnown(@NotNull String username);
+
+    /**
+     * @return true if the password is the one of the user
+     */
+    boolean authenticate(@NotNull String username, @NotNull String password);
+
+    /**
+     * Accepts nobody, e.g. for servers with anonymous logins only.
+     */
+    Authenticator NONE = new Authenticator() {
+        @Override
+        public boolean isKnown(@NotNull final String username) {
+            return false;
+        }
+
+        @Override
+        public boolean authenticate(@NotNull final String username, @NotNull final String password) {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Authenticator.NONE";
+        }
+    };
+}
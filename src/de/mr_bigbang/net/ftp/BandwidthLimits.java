@@ -0,0 +1,82 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rate limits for downloads and uploads, in bytes per second, on three levels: the whole server,
+ * each user (all sessions logged in with that name together) and each session. 0 means unlimited.
+ *
+ * The buckets of the server and of the users are shared, the session buckets are created by
+ * {@link #newDownloadThrottle} and {@link #newUploadThrottle}.
+ */
+final class BandwidthLimits {
+    // Tokens an idle bucket holds: 100 ms worth of data, but at least 64 KB
+    private static final long BURST_DIVISOR = 10;
+    private static final long MIN_BURST = 64 * 1024;
+
+    private final long userDownloadRate;
+    public long getUserDownloadRate() { return userDownloadRate; }
+
+    private final long userUploadRate;
+    public long getUserUploadRate() { return userUploadRate; }
+
+    private final long sessionDownloadRate;
+    public long getSessionDownloadRate() { return sessionDownloadRate; }
+
+    private final long sessionUploadRate;
+    public long getSessionUploadRate() { return sessionUploadRate; }
+
+    private final TokenBucket globalDownload;
+    private final TokenBucket globalUpload;
+    private final ConcurrentHashMap<String, TokenBucket> userDownload = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> userUpload = new ConcurrentHashMap<>();
+
+    public BandwidthLimits(final long globalDownloadRate, final long globalUploadRate,
+                           final long userDownloadRate, final long userUploadRate,
+                           final long sessionDownloadRate, final long sessionUploadRate) {
+        if (globalDownloadRate < 0 || globalUploadRate < 0 || userDownloadRate < 0 || userUploadRate < 0
+                || sessionDownloadRate < 0 || sessionUploadRate < 0) {
+            throw new IllegalArgumentException("Rates must not be negative");
+        }
+
+        this.globalDownload = newBucket(globalDownloadRate);
+        this.globalUpload = newBucket(globalUploadRate);
+        this.userDownloadRate = userDownloadRate;
+        this.userUploadRate = userUploadRate;
+        this.sessionDownloadRate = sessionDownloadRate;
+        this.sessionUploadRate = sessionUploadRate;
+    }
+
+    static long getBurst(final long rate) {
+        return Math.max(MIN_BURST, rate / BURST_DIVISOR);
+    }
+
+    private static TokenBucket newBucket(final long rate) {
+        return rate > 0 ? new TokenBucket(rate, getBurst(rate)) : null;
+    }
+
+    /**
+     * @return Throttle for the downloads of a new session, null if unlimited
+     */
+    Throttle newDownloadThrottle(@NotNull final String user) {
+        var userBucket = userDownloadRate > 0 ? userDownload.computeIfAbsent(user, u -> newBucket(userDownloadRate)) : null;
+        return Throttle.of(newBucket(sessionDownloadRate), userBucket, globalDownload);
+    }
+
+    /**
+     * @return Throttle for the uploads of a new session, null if unlimited
+     */
+    Throttle newUploadThrottle(@NotNull final String user) {
+        var userBucket = userUploadRate > 0 ? userUpload.computeIfAbsent(user, u -> newBucket(userUploadRate)) : null;
+        return Throttle.of(newBucket(sessionUploadRate), userBucket, globalUpload);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BandwidthLimits[globalDownload=%d, globalUpload=%d, userDownload=%d, userUpload=%d, sessionDownload=%d, sessionUpload=%d]",
+                globalDownload != null ? globalDownload.getRate() : 0, globalUpload != null ? globalUpload.getRate() : 0,
+                getUserDownloadRate(), getUserUploadRate(), getSessionDownloadRate(), getSessionUploadRate());
+    }
+}
@@ -0,0 +1,354 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Block mode (RFC959 3.4.2, MODE B).
+ *
+ * The data is sent as a sequence of blocks, each with a header of
+ * - a descriptor code (8 bits) and
+ * - the byte count (16 bits)
+ * followed by up to 65535 bytes. A block with the restart marker descriptor carries a marker
+ * instead of data. The markers sent by the server are the offsets into the file, so clients can
+ * resume with REST marker.
+ */
+final class BlockMode {
+    private static final int HEADER_SIZE = 3;
+    private static final int MAX_BLOCK_SIZE = 0xffff;
+    // Restart markers are short printable strings, longer ones are cut off
+    private static final int MAX_MARKER_LENGTH = 64;
+
+    static final long DEFAULT_MARKER_INTERVAL = 64 * 1024 * 1024;
+
+    private BlockMode() { }
+
+    /**
+     * Called when a restart marker has been reached, after all data before it has been written.
+     */
+    interface Checkpoint {
+        /**
+         * @param marker Marker sent by the client, null if the server decided to set a checkpoint
+         * @param position Offset into the file
+         */
+        void reached(String marker, long position) throws IOException;
+    }
+
+    /**
+     * Frames everything written to it into blocks. Closing it sends the EOF block, the data
+     * connection itself stays open.
+     */
+    static final class Encoder implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer out = pool.acquire();
+        private final long markerInterval;
+        private final byte[] digits = new byte[20];
+        private long position;
+        private long nextMarker;
+        private int blockStart = -1; // Position of the header of the open block in out, -1 if none
+        private boolean open = true;
+
+        /**
+         * @param position Offset of the first byte written into the file
+         * @param markerInterval Bytes between restart markers, 0 for none
+         */
+        Encoder(@NotNull final WritableByteChannel target, final long position, final long markerInterval) {
+            this.target = target;
+            this.position = position;
+            this.markerInterval = markerInterval;
+            this.nextMarker = markerInterval > 0 ? position + markerInterval : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int write(@NotNull final ByteBuffer src) throws IOException {
+            var count = src.remaining();
+            while (src.hasRemaining()) {
+                if (position >= nextMarker) {
+                    endBlock();
+                    putMarker();
+                    nextMarker = position + markerInterval;
+                }
+
+                if (blockStart == -1) {
+                    if (out.remaining() < HEADER_SIZE + 1) {
+                        flush();
+                    }
+                    blockStart = out.position();
+                    out.position(blockStart + HEADER_SIZE);
+                }
+
+                var blockSize = out.position() - blockStart - HEADER_SIZE;
+                var n = (int) Math.min(Math.min(src.remaining(), out.remaining()),
+                        Math.min(MAX_BLOCK_SIZE - blockSize, nextMarker - position));
+                var limit = src.limit();
+                src.limit(src.position() + n);
+                out.put(src);
+                src.limit(limit);
+                position += n;
+
+                if (blockSize + n == MAX_BLOCK_SIZE || !out.hasRemaining()) {
+                    endBlock();
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Fill in the header of the open block.
+         */
+        private void endBlock() {
+            endBlock(0);
+        }
+
+        private void endBlock(final int descriptor) {
+            if (blockStart == -1) {
+                return;
+            }
+            var size = out.position() - blockStart - HEADER_SIZE;
+            out.put(blockStart, (byte) descriptor);
+            out.put(blockStart + 1, (byte) (size >> 8));
+            out.put(blockStart + 2, (byte) size);
+            blockStart = -1;
+        }
+
+        /**
+         * Restart marker block with the current position in decimal.
+         */
+        private void putMarker() throws IOException {
+            var v = position;
+            var i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            var length = digits.length - i;
+
+            if (out.remaining() < HEADER_SIZE + length) {
+                flush();
+            }
+            out.put((byte) CompressedMode.DESCRIPTOR_RESTART_MARKER).put((byte) 0).put((byte) length);
+            out.put(digits, i, length);
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                target.write(out);
+            }
+            out.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+
+            try {
+                if (blockStart != -1) {
+                    endBlock(CompressedMode.DESCRIPTOR_EOF);
+                } else {
+                    if (out.remaining() < HEADER_SIZE) {
+                        flush();
+                    }
+                    out.put((byte) CompressedMode.DESCRIPTOR_EOF).put((byte) 0).put((byte) 0);
+                }
+                flush();
+            } finally {
+                pool.release(out);
+            }
+        }
+    }
+
+    /**
+     * Extracts the data from the blocks read from the data connection. Returns end of stream
+     * after the EOF block or if the connection is closed without one. A read ends early at a
+     * restart marker, see {@link #takeMarker()}.
+     */
+    static final class Decoder implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer in = pool.acquire().flip();
+        private final byte[] header = new byte[HEADER_SIZE];
+        private final byte[] marker = new byte[MAX_MARKER_LENGTH];
+        private int headerLength = 0;
+        private int descriptor;
+        private int remaining = 0; // Bytes left in the current block
+        private int markerLength = 0;
+        private String pendingMarker;
+        private boolean eof = false;
+        private boolean open = true;
+
+        Decoder(@NotNull final ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        /**
+         * @return true if a restart marker has been reached, reads return nothing until it is taken
+         */
+        boolean hasMarker() {
+            return pendingMarker != null;
+        }
+
+        /**
+         * @return Restart marker reached by the last read, null if none
+         */
+        String takeMarker() {
+            var m = pendingMarker;
+            pendingMarker = null;
+            return m;
+        }
+
+        @Override
+        public int read(@NotNull final ByteBuffer dst) throws IOException {
+            var start = dst.position();
+            while (dst.hasRemaining() && pendingMarker == null) {
+                if (remaining == 0 && headerLength == HEADER_SIZE) {
+                    endBlock();
+                    continue;
+                }
+                if (remaining == 0 && eof) {
+                    break;
+                }
+
+                if (!in.hasRemaining()) {
+                    if (dst.position() > start) {
+                        // Hand out what we have before blocking again
+                        break;
+                    }
+                    in.clear();
+                    var count = source.read(in);
+                    in.flip();
+                    if (count == -1) {
+                        // Connection closed without EOF block
+                        eof = true;
+                        break;
+                    }
+                    continue;
+                }
+
+                if (headerLength < HEADER_SIZE) {
+                    header[headerLength++] = in.get();
+                    if (headerLength == HEADER_SIZE) {
+                        descriptor = header[0] & 0xff;
+                        remaining = ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                        markerLength = 0;
+                    }
+                    continue;
+                }
+
+                var n = Math.min(remaining, in.remaining());
+                if ((descriptor & CompressedMode.DESCRIPTOR_RESTART_MARKER) != 0) {
+                    for (var i = 0; i < n; ++i) {
+                        var b = in.get();
+                        if (markerLength < MAX_MARKER_LENGTH) {
+                            marker[markerLength++] = b;
+                        }
+                    }
+                } else {
+                    n = Math.min(n, dst.remaining());
+                    var limit = in.limit();
+                    in.limit(in.position() + n);
+                    dst.put(in);
+                    in.limit(limit);
+                }
+                remaining -= n;
+            }
+
+            var count = dst.position() - start;
+            return count == 0 && eof && pendingMarker == null ? -1 : count;
+        }
+
+        /**
+         * The current block has been read completely.
+         */
+        private void endBlock() {
+            headerLength = 0;
+            if ((descriptor & CompressedMode.DESCRIPTOR_RESTART_MARKER) != 0) {
+                pendingMarker = new String(marker, 0, markerLength, StandardCharsets.US_ASCII);
+            }
+            if ((descriptor & CompressedMode.DESCRIPTOR_EOF) != 0) {
+                eof = true;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && source.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The data connection is closed by its owner
+            if (open) {
+                open = false;
+                pool.release(in);
+            }
+        }
+    }
+
+    /**
+     * Write everything read from the data connection into the file, starting at position.
+     *
+     * At every restart marker sent by the client, and every markerInterval bytes, the buffered
+     * data is written to the file before the checkpoint is reported.
+     *
+     * @param source Channel reading from blocks, e.g. to convert the data
+     * @param blocks Decoder reporting the restart markers
+     * @param markerInterval Bytes between checkpoints set by the server, 0 for none
+     * @return Number of bytes received
+     */
+    static long receive(@NotNull final ReadableByteChannel source, @NotNull final Decoder blocks,
+                        @NotNull final FileChannel target, final long position,
+                        final long markerInterval, @NotNull final Checkpoint checkpoint)
+    throws IOException {
+        var pool = FileTransfer.getBufferPool();
+        var buffer = pool.acquire();
+        try {
+            var offset = position;
+            var nextMarker = markerInterval > 0 ? position + markerInterval : Long.MAX_VALUE;
+            while (source.read(buffer) != -1) {
+                if (blocks.hasMarker() || offset + buffer.position() >= nextMarker) {
+                    // Data before a marker may still be held by source, it stops at the marker
+                    do {
+                        offset += write(buffer, target, offset);
+                    } while (blocks.hasMarker() && source.read(buffer) > 0);
+                    checkpoint.reached(blocks.takeMarker(), offset);
+                    if (markerInterval > 0) {
+                        nextMarker = offset + markerInterval;
+                    }
+                } else if (!buffer.hasRemaining()) {
+                    offset += write(buffer, target, offset);
+                }
+            }
+            offset += write(buffer, target, offset);
+            return offset - position;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static long write(@NotNull final ByteBuffer buffer, @NotNull final FileChannel target, final long position)
+    throws IOException {
+        buffer.flip();
+        var offset = position;
+        while (buffer.hasRemaining()) {
+            offset += target.write(buffer, offset);
+        }
+        buffer.clear();
+        return offset - position;
+    }
+}
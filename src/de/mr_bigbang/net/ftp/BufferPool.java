@@ -0,0 +1,109 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of direct buffers shared by all sessions.
+ *
+ * Buffers are handed out cleared. If the pool is empty a new buffer is allocated (a miss). At most
+ * capacity direct buffers exist at a time, direct memory isn't bounded by the heap and running out
+ * of it fails with an OutOfMemoryError. Once all of them are in use, acquire waits a moment for one
+ * to be released and then hands out a heap buffer instead, slower but bounded by the heap.
+ */
+class BufferPool {
+    // Milliseconds to wait for a direct buffer before falling back to the heap
+    private static final long ACQUIRE_TIMEOUT = 20;
+
+    private final int bufferSize;
+    public int getBufferSize() { return bufferSize; }
+
+    private final int capacity;
+    public int getCapacity() { return capacity; }
+
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    private final Semaphore direct; // One permit per direct buffer which may still be allocated or taken from buffers
+
+    private final AtomicLong hits = new AtomicLong();
+    public long getHits() { return hits.get(); }
+
+    private final AtomicLong misses = new AtomicLong();
+    public long getMisses() { return misses.get(); }
+
+    private final AtomicLong fallbacks = new AtomicLong();
+    /**
+     * @return Heap buffers handed out because all direct buffers were in use
+     */
+    public long getFallbacks() { return fallbacks.get(); }
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    /**
+     * @return Number of buffers acquired and not released yet
+     */
+    public int getInUse() { return inUse.get(); }
+
+    /**
+     * @return Number of idle buffers in the pool
+     */
+    public int getAvailable() { return buffers.size(); }
+
+    public BufferPool(final int bufferSize, final int capacity) {
+        if (bufferSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Buffer size and capacity must be positive");
+        }
+
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.direct = new Semaphore(capacity);
+    }
+
+    public ByteBuffer acquire() {
+        inUse.incrementAndGet();
+        if (!tryAcquireDirect()) {
+            fallbacks.incrementAndGet();
+            return ByteBuffer.allocate(bufferSize);
+        }
+
+        var buffer = buffers.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        hits.incrementAndGet();
+        return buffer.clear();
+    }
+
+    public void release(@NotNull final ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        // Heap fallbacks are left to the garbage collector, foreign buffers might have a different size
+        if (buffer.capacity() == bufferSize && buffer.isDirect()) {
+            buffers.offer(buffer);
+            direct.release();
+        }
+    }
+
+    private boolean tryAcquireDirect() {
+        if (direct.tryAcquire()) {
+            return true;
+        }
+        try {
+            return direct.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool[size=%d, capacity=%d, available=%d, inUse=%d, hits=%d, misses=%d, fallbacks=%d]",
+                getBufferSize(), getCapacity(), getAvailable(), getInUse(), getHits(), getMisses(), getFallbacks());
+    }
+}
@@ -0,0 +1,450 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Maps FTP verbs to the {@link FtpServer} methods handling them.
+ *
+ * The table is built once. A command line is cut into verb and argument at the first space, the
+ * argument (which may contain spaces, e.g. in pathnames) is passed on as is and only parsed further
+ * by the verbs that need it.
+ */
+final class CommandDispatcher {
+    @FunctionalInterface
+    interface Command {
+        /**
+         * @param server Session the command was sent to
+         * @param argument Everything after the verb, null if there is no argument
+         */
+        void execute(@NotNull FtpServer server, String argument);
+    }
+
+    private static final Map<String, Command> COMMANDS = new HashMap<>();
+
+    static {
+        // RFC959 Access control commands
+        register(requiredArgument(FtpServer::USER), "USER");
+        register(requiredArgument(FtpServer::PASS), "PASS");
+        register(requiredArgument(FtpServer::ACCT), "ACCT");
+        register(requiredArgument(FtpServer::CWD), "CWD", "XCWD"); // XCWD: Alias as of RFC1123 4.1.3.1 P35
+        register(noArgument(FtpServer::CDUP), "CDUP", "XCUP"); // XCUP: Alias as of RFC1123 4.1.3.1 P35
+        register(noArgument(FtpServer::QUIT), "QUIT");
+
+        // RFC959 Transfer parameter commands
+        register(CommandDispatcher::PORT, "PORT");
+        register(noArgument(FtpServer::PASV), "PASV");
+        register(CommandDispatcher::TYPE, "TYPE");
+        register(CommandDispatcher::STRU, "STRU");
+        register(CommandDispatcher::MODE, "MODE");
+
+        // RFC959 FTP service commands
+        register(requiredArgument(FtpServer::RETR), "RETR");
+        register(requiredArgument(FtpServer::STOR), "STOR");
+        register(requiredArgument(FtpServer::APPE), "APPE");
+        register(CommandDispatcher::REST, "REST");
+        register(CommandDispatcher::RANG, "RANG");
+        register(requiredArgument(FtpServer::RNFR), "RNFR");
+        register(requiredArgument(FtpServer::RNTO), "RNTO");
+        register(requiredArgument(FtpServer::DELE), "DELE");
+        register(requiredArgument(FtpServer::RMD), "RMD", "XRMD"); // XRMD: Alias as of RFC1123 4.1.3.1 P35
+        register(requiredArgument(FtpServer::MKD), "MKD", "XMKD"); // XMKD: Alias as of RFC1123 4.1.3.1 P35
+        register(noArgument(FtpServer::PWD), "PWD", "XPWD"); // XPWD: Alias as of RFC1123 4.1.3.1 P35
+        register(optionalArgument(FtpServer::LIST, FtpServer::LIST), "LIST");
+        register(optionalArgument(FtpServer::NLST, FtpServer::NLST), "NLST");
+        register(noArgument(FtpServer::SYST), "SYST");
+        register(noArgument(FtpServer::NOOP), "NOOP");
+
+        // RFC2389
+        register(CommandDispatcher::FEAT, "FEAT");
+        register(CommandDispatcher::OPTS, "OPTS");
+
+        // RFC2428
+        register(CommandDispatcher::EPRT, "EPRT");
+        register(optionalArgument(FtpServer::EPSV, FtpServer::EPSV), "EPSV");
+        register(requiredArgument(FtpServer::MDTM), "MDTM");
+        register(requiredArgument(FtpServer::SIZE), "SIZE");
+        register(optionalArgument(FtpServer::MLST, FtpServer::MLST), "MLST");
+        register(optionalArgument(FtpServer::MLSD, FtpServer::MLSD), "MLSD");
+    }
+
+    private CommandDispatcher() { }
+
+    private static void register(@NotNull final Command command, @NotNull final String... verbs) {
+        for (var verb : verbs) {
+            COMMANDS.put(verb, command);
+        }
+    }
+
+    /**
+     * Execute a command line.
+     *
+     * @param server Session the command was sent to
+     * @param line Command line without CRLF
+     */
+    static void dispatch(@NotNull final FtpServer server, @NotNull final String line) {
+        var separator = line.indexOf(' ');
+        var verb = separator == -1 ? line : line.substring(0, separator);
+        var argument = separator == -1 || separator == line.length() - 1 ? null : line.substring(separator + 1);
+
+        // FTP commands are case insensitive (RFC959 4.3 P45)
+        var command = COMMANDS.get(verb.toUpperCase(Locale.ROOT));
+        if (command == null) {
+            server.sendReply(new FtpReply(502)); // Command not implemented.
+        } else {
+            command.execute(server, argument);
+        }
+    }
+
+    //region Argument parsers
+    /**
+     * Parameters of e.g. RANG and OPTS MODE are separated by whitespace. Clients aren't always
+     * careful with spaces, so runs of whitespace count as one separator.
+     *
+     * @return Index of the first character at or after start which isn't whitespace, the length
+     *         of the argument if there is none
+     */
+    static int skipWhitespace(@NotNull final String argument, final int start) {
+        var i = start;
+        while (i < argument.length() && Character.isWhitespace(argument.charAt(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * @return Index after the last character of the parameter starting at start
+     */
+    static int parameterEnd(@NotNull final String argument, final int start) {
+        var i = start;
+        while (i < argument.length() && !Character.isWhitespace(argument.charAt(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static Command noArgument(@NotNull final Consumer<FtpServer> method) {
+        return (server, argument) -> method.accept(server);
+    }
+
+    private static Command requiredArgument(@NotNull final BiConsumer<FtpServer, String> method) {
+        return (server, argument) -> {
+            if (argument == null) {
+                server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            } else {
+                method.accept(server, argument);
+            }
+        };
+    }
+
+    private static Command optionalArgument(@NotNull final Consumer<FtpServer> withoutArgument,
+                                            @NotNull final BiConsumer<FtpServer, String> withArgument) {
+        return (server, argument) -> {
+            if (argument == null) {
+                withoutArgument.accept(server);
+            } else {
+                withArgument.accept(server, argument);
+            }
+        };
+    }
+
+    /**
+     * PORT h1,h2,h3,h4,p1,p2
+     */
+    private static void PORT(@NotNull final FtpServer server, final String argument) {
+        if (argument == null) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        var values = new int[6];
+        var index = 0;
+        var value = -1;
+        for (var i = 0; i < argument.length(); ++i) {
+            var c = argument.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value == -1 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    break;
+                }
+            } else if (c == ',' && value != -1 && index < 5) {
+                values[index++] = value;
+                value = -1;
+            } else {
+                value = 256; // Invalid character
+                break;
+            }
+        }
+
+        if (index != 5 || value < 0 || value > 255) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+        server.PORT(values[0], values[1], values[2], values[3], values[4], value);
+    }
+
+    /**
+     * TYPE A [N|T|C], TYPE E [N|T|C], TYPE I, TYPE L byte-size
+     */
+    private static void TYPE(@NotNull final FtpServer server, final String argument) {
+        if (argument == null) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        var hasSecondParameter = argument.length() > 2 && argument.charAt(1) == ' ';
+        if (argument.length() != 1 && !hasSecondParameter) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        switch (Character.toUpperCase(argument.charAt(0))) {
+            case 'A', 'E' -> {
+                var type = Character.toUpperCase(argument.charAt(0)) == 'A' ? TypeCode.ASCII : TypeCode.EBCDIC;
+                if (!hasSecondParameter) {
+                    // RFC959 4.1.2 P. 29
+                    // If the Format parameter is changed, and later just the first
+                    // argument is changed, Format then returns to the Non-print
+                    // default.
+                    server.TYPE(type, FormCode.NON_PRINT);
+                } else if (argument.length() != 3) {
+                    server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+                } else {
+                    switch (Character.toUpperCase(argument.charAt(2))) {
+                        case 'N' -> server.TYPE(type, FormCode.NON_PRINT);
+                        case 'T' -> server.TYPE(type, FormCode.TELNET_FORMAT_CONTROLS);
+                        case 'C' -> server.TYPE(type, FormCode.CARRIAGE_CONTROL_ASA);
+                        default -> server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+                    }
+                }
+            }
+            case 'I' -> {
+                if (hasSecondParameter) {
+                    server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+                } else {
+                    server.TYPE(TypeCode.IMAGE);
+                }
+            }
+            case 'L' -> {
+                if (!hasSecondParameter) {
+                    server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+                    return;
+                }
+                try {
+                    server.TYPE(TypeCode.LOCAL, Integer.parseInt(argument, 2, argument.length(), 10));
+                } catch (NumberFormatException ex) {
+                    server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+                }
+            }
+            default -> server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
+    }
+
+    /**
+     * STRU F|R|P
+     */
+    private static void STRU(@NotNull final FtpServer server, final String argument) {
+        if (argument == null || argument.length() != 1) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        switch (Character.toUpperCase(argument.charAt(0))) {
+            case 'F' -> server.STRU(DataStructure.FILE);
+            case 'R' -> server.STRU(DataStructure.RECORD);
+            case 'P' -> server.STRU(DataStructure.PAGE);
+            default -> server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
+    }
+
+    /**
+     * MODE S|B|C|Z
+     */
+    private static void MODE(@NotNull final FtpServer server, final String argument) {
+        if (argument == null || argument.length() != 1) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        switch (Character.toUpperCase(argument.charAt(0))) {
+            case 'S' -> server.MODE(TransmissionMode.STREAM);
+            case 'B' -> server.MODE(TransmissionMode.BLOCK);
+            case 'C' -> server.MODE(TransmissionMode.COMPRESSED);
+            case 'Z' -> server.MODE(TransmissionMode.DEFLATE);
+            default -> server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
+    }
+
+    /**
+     * REST marker
+     */
+    private static void REST(@NotNull final FtpServer server, final String argument) {
+        if (argument == null) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        server.REST(argument);
+    }
+
+    /**
+     * RANG start-point end-point (draft-bryan-ftp-range)
+     */
+    private static void RANG(@NotNull final FtpServer server, final String argument) {
+        if (argument == null) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        var startBegin = skipWhitespace(argument, 0);
+        var startEnd = parameterEnd(argument, startBegin);
+        var endBegin = skipWhitespace(argument, startEnd);
+        var endEnd = parameterEnd(argument, endBegin);
+        if (startBegin == startEnd || endBegin == endEnd || skipWhitespace(argument, endEnd) != argument.length()) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        try {
+            server.RANG(Long.parseLong(argument, startBegin, startEnd, 10), Long.parseLong(argument, endBegin, endEnd, 10));
+        } catch (NumberFormatException ex) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
+    }
+
+    /**
+     * FEAT doesn't take any arguments (RFC2389 3.1)
+     */
+    private static void FEAT(@NotNull final FtpServer server, final String argument) {
+        if (argument == null) {
+            server.FEAT();
+        } else {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
+    }
+
+    /**
+     * OPTS command-name [command-options]
+     */
+    private static void OPTS(@NotNull final FtpServer server, final String argument) {
+        if (argument == null) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        var separator = argument.indexOf(' ');
+        if (separator == -1) {
+            server.OPTS(argument);
+        } else {
+            server.OPTS(argument.substring(0, separator), argument.substring(separator + 1));
+        }
+    }
+
+    /**
+     * EPRT |net-prt|net-addr|tcp-port| (RFC2428 2.)
+     *
+     * The first character is the delimiter.
+     */
+    private static void EPRT(@NotNull final FtpServer server, final String argument) {
+        if (argument == null || argument.length() < 7) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        var delimiter = argument.charAt(0);
+        var protocolEnd = argument.indexOf(delimiter, 1);
+        var addressEnd = protocolEnd == -1 ? -1 : argument.indexOf(delimiter, protocolEnd + 1);
+        var portEnd = addressEnd == -1 ? -1 : argument.indexOf(delimiter, addressEnd + 1);
+        if (portEnd != argument.length() - 1 || delimiter < 33 || delimiter > 126) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        var protocol = argument.substring(1, protocolEnd);
+        var address = argument.substring(protocolEnd + 1, addressEnd);
+        int port;
+        try {
+            port = Integer.parseInt(argument, addressEnd + 1, portEnd, 10);
+        } catch (NumberFormatException ex) {
+            port = -1;
+        }
+        if (port <= 0 || port > 65535) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        // Only accept literals, getByName() would resolve host names
+        InetAddress inetAddress;
+        try {
+            switch (protocol) {
+                case "1" -> inetAddress = parseIPv4(address);
+                case "2" -> inetAddress = isIPv6Literal(address) ? InetAddress.getByName(address) : null;
+                default -> {
+                    server.sendReply(new FtpReply(522)); // Network protocol not supported, use (1,2)
+                    return;
+                }
+            }
+        } catch (UnknownHostException ex) {
+            inetAddress = null;
+        }
+
+        if (inetAddress == null) {
+            server.sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+        server.EPRT(inetAddress, port);
+    }
+
+    /**
+     * @param address Dotted decimal address, e.g. 192.0.2.1
+     * @return null if it isn't made of four octets from 0 to 255
+     */
+    private static InetAddress parseIPv4(@NotNull final String address) throws UnknownHostException {
+        var bytes = new byte[4];
+        var index = 0;
+        var value = -1;
+        for (var i = 0; i < address.length(); ++i) {
+            var c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value == -1 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && value != -1 && index < 3) {
+                bytes[index++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (index != 3 || value == -1) {
+            return null;
+        }
+        bytes[3] = (byte) value;
+        return InetAddress.getByAddress(bytes);
+    }
+
+    /**
+     * getByName() parses anything with colons as an IPv6 literal and never looks it up.
+     */
+    private static boolean isIPv6Literal(@NotNull final String address) {
+        var colons = 0;
+        for (var i = 0; i < address.length(); ++i) {
+            var c = address.charAt(i);
+            if (c == ':') {
+                ++colons;
+            } else if (!(c == '.' || Character.digit(c, 16) != -1)) {
+                return false;
+            }
+        }
+        return colons >= 2;
+    }
+    //endregion
+}
@@ -0,0 +1,290 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Compressed mode (RFC959 3.4.3, MODE C).
+ *
+ * The data is sent as a sequence of
+ * - byte strings: 0nnnnnnn followed by n (1-127) bytes;
+ * - replicated bytes: 10nnnnnn followed by one byte which is repeated n (1-63) times;
+ * - filler: 11nnnnnn for n (1-63) filler bytes, spaces in TYPE A/E, zeros in TYPE I/L; and
+ * - escape sequences: 00000000 followed by a descriptor code of block mode.
+ *
+ * The end of the file is marked with the escape sequence for EOF.
+ */
+final class CompressedMode {
+    private static final int MAX_STRING = 127;
+    private static final int MAX_REPLICATION = 63;
+    // Shorter runs cost as much as sending them as part of a byte string
+    private static final int MIN_REPLICATION = 3;
+
+    // Descriptor codes (RFC959 3.4.2)
+    static final int DESCRIPTOR_EOR = 128;
+    static final int DESCRIPTOR_EOF = 64;
+    static final int DESCRIPTOR_ERRORS = 32;
+    static final int DESCRIPTOR_RESTART_MARKER = 16;
+
+    private CompressedMode() { }
+
+    /**
+     * @return Filler byte of the representation type
+     */
+    static byte getFiller(@NotNull final TypeCode typeCode) {
+        switch (typeCode) {
+            case ASCII:
+                return ' ';
+            case EBCDIC:
+                return 0x40; // EBCDIC space
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Compresses everything written to it. Closing it writes the EOF marker, the data connection
+     * itself stays open.
+     */
+    static final class Encoder implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final byte filler;
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer out = pool.acquire();
+        private final byte[] string = new byte[MAX_STRING];
+        private int stringLength = 0;
+        private int run = -1; // Byte of the current run, -1 if none
+        private int runLength = 0;
+        private boolean open = true;
+
+        Encoder(@NotNull final WritableByteChannel target, final byte filler) {
+            this.target = target;
+            this.filler = filler;
+        }
+
+        @Override
+        public int write(@NotNull final ByteBuffer src) throws IOException {
+            var count = src.remaining();
+            while (src.hasRemaining()) {
+                var b = src.get() & 0xff;
+                if (b == run && runLength < MAX_REPLICATION) {
+                    ++runLength;
+                } else {
+                    endRun();
+                    run = b;
+                    runLength = 1;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Emit the current run, either replicated or as part of a byte string.
+         */
+        private void endRun() throws IOException {
+            if (runLength >= MIN_REPLICATION) {
+                endString();
+                reserve(2);
+                if ((byte) run == filler) {
+                    out.put((byte) (0xc0 | runLength));
+                } else {
+                    out.put((byte) (0x80 | runLength));
+                    out.put((byte) run);
+                }
+            } else {
+                for (var i = 0; i < runLength; ++i) {
+                    if (stringLength == MAX_STRING) {
+                        endString();
+                    }
+                    string[stringLength++] = (byte) run;
+                }
+            }
+            run = -1;
+            runLength = 0;
+        }
+
+        private void endString() throws IOException {
+            if (stringLength == 0) {
+                return;
+            }
+            reserve(1 + stringLength);
+            out.put((byte) stringLength);
+            out.put(string, 0, stringLength);
+            stringLength = 0;
+        }
+
+        private void reserve(final int length) throws IOException {
+            if (out.remaining() < length) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                target.write(out);
+            }
+            out.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+
+            try {
+                endRun();
+                endString();
+                reserve(2);
+                out.put((byte) 0).put((byte) DESCRIPTOR_EOF);
+                flush();
+            } finally {
+                pool.release(out);
+            }
+        }
+    }
+
+    /**
+     * Decompresses the data read from the data connection. Returns end of stream after the EOF
+     * marker or if the connection is closed without one.
+     */
+    static final class Decoder implements ReadableByteChannel {
+        private enum State {
+            HEADER,
+            STRING, // Bytes of a byte string left in remaining
+            REPLICATION_BYTE, // Waiting for the byte to replicate
+            REPLICATION, // Bytes left to write in remaining
+            DESCRIPTOR, // Waiting for the descriptor code of an escape sequence
+            END,
+        }
+
+        private final ReadableByteChannel source;
+        private final byte filler;
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer in = pool.acquire().flip();
+        private boolean open = true;
+        private State state = State.HEADER;
+        private int remaining = 0;
+        private byte replicated;
+        // The byte string following a restart marker escape is the marker, not data
+        private boolean skipString = false;
+
+        Decoder(@NotNull final ReadableByteChannel source, final byte filler) {
+            this.source = source;
+            this.filler = filler;
+        }
+
+        @Override
+        public int read(@NotNull final ByteBuffer dst) throws IOException {
+            var start = dst.position();
+            while (dst.hasRemaining() && state != State.END) {
+                if (state == State.REPLICATION) {
+                    var n = Math.min(remaining, dst.remaining());
+                    for (var i = 0; i < n; ++i) {
+                        dst.put(replicated);
+                    }
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = State.HEADER;
+                    }
+                    continue;
+                }
+
+                if (!in.hasRemaining()) {
+                    if (dst.position() > start) {
+                        // Hand out what we have before blocking again
+                        break;
+                    }
+                    in.clear();
+                    var count = source.read(in);
+                    in.flip();
+                    if (count == -1) {
+                        // Connection closed without EOF marker
+                        state = State.END;
+                        break;
+                    }
+                    continue;
+                }
+
+                switch (state) {
+                    case HEADER:
+                        var header = in.get() & 0xff;
+                        if (header == 0) {
+                            state = State.DESCRIPTOR;
+                        } else if ((header & 0x80) == 0) {
+                            remaining = header;
+                            state = State.STRING;
+                        } else if ((header & 0x40) == 0) {
+                            remaining = header & 0x3f;
+                            state = State.REPLICATION_BYTE;
+                        } else {
+                            remaining = header & 0x3f;
+                            replicated = filler;
+                            state = remaining == 0 ? State.HEADER : State.REPLICATION;
+                        }
+                        break;
+                    case STRING:
+                        var n = Math.min(remaining, in.remaining());
+                        if (skipString) {
+                            in.position(in.position() + n);
+                        } else {
+                            n = Math.min(n, dst.remaining());
+                            var limit = in.limit();
+                            in.limit(in.position() + n);
+                            dst.put(in);
+                            in.limit(limit);
+                        }
+                        remaining -= n;
+                        if (remaining == 0) {
+                            skipString = false;
+                            state = State.HEADER;
+                        }
+                        break;
+                    case REPLICATION_BYTE:
+                        replicated = in.get();
+                        state = remaining == 0 ? State.HEADER : State.REPLICATION;
+                        break;
+                    case DESCRIPTOR:
+                        var descriptor = in.get() & 0xff;
+                        if ((descriptor & DESCRIPTOR_EOF) != 0) {
+                            state = State.END;
+                        } else {
+                            skipString = (descriptor & DESCRIPTOR_RESTART_MARKER) != 0;
+                            state = State.HEADER;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            var count = dst.position() - start;
+            return count == 0 && state == State.END ? -1 : count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && source.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The data connection is closed by its owner
+            if (open) {
+                open = false;
+                pool.release(in);
+            }
+        }
+    }
+}
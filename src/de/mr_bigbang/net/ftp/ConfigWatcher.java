@@ -0,0 +1,119 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Reloads the config file when it changes.
+ *
+ * The directory of the file is watched with a {@link WatchService}. Editors often write a file in
+ * several steps, so the file is read once it has been quiet for a moment. A file which can't be
+ * read or contains values the listener rejects is logged and the current config stays in place.
+ */
+class ConfigWatcher implements Runnable {
+    // Milliseconds without further changes before the file is read
+    private static final long SETTLE_TIME = 200;
+
+    private final Path path;
+    public Path getPath() { return path; }
+
+    private final BiConsumer<ServerConfig, ServerConfig> listener;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @param path Config file
+     * @param listener Called with the previous and the new config before it is set, applies the
+     *                 new config or throws an exception to reject it
+     */
+    public ConfigWatcher(@NotNull final Path path, @NotNull final BiConsumer<ServerConfig, ServerConfig> listener)
+    throws IOException {
+        this.path = path.toAbsolutePath().normalize();
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.path.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        this.thread = new Thread(this, "ftp-config-watch");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Read the file and replace the current config.
+     *
+     * @return false if the file couldn't be read or was rejected, the current config is kept then
+     */
+    public boolean reload() {
+        ServerConfig config;
+        try {
+            config = ServerConfig.load(path);
+        } catch (IOException ex) {
+            Logger.SERVER.error("Config not reloaded: " + ex.getMessage());
+            return false;
+        }
+
+        var previous = ServerConfig.get();
+        try {
+            listener.accept(previous, config);
+        } catch (RuntimeException ex) {
+            Logger.SERVER.error("Config not reloaded: " + ex.getMessage());
+            return false;
+        }
+        ServerConfig.set(config);
+        Logger.SERVER.info("Config reloaded from " + path);
+        var restartRequired = config.getRestartRequired(previous);
+        if (!restartRequired.isEmpty()) {
+            Logger.SERVER.warn("Changes of " + String.join(", ", restartRequired) + " take effect after a restart");
+        }
+        return true;
+    }
+
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            Logger.SERVER.error("IOException: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                var key = watchService.take();
+                var changed = false;
+                do {
+                    for (var event : key.pollEvents()) {
+                        // OVERFLOW has no context, the file may have changed as well
+                        changed |= event.kind() == OVERFLOW || path.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                } while ((key = watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null);
+
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (RuntimeException ex) {
+                        // Keep watching, the next change may fix it
+                        Logger.SERVER.error("Config not reloaded: " + ex);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Watcher closed
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConfigWatcher[path=%s]", getPath());
+    }
+}
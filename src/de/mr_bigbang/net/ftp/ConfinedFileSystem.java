@@ -0,0 +1,144 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Keeps a session from following symbolic links out of its root.
+ *
+ * {@link PathResolver} confines pathnames, but a link below the root (e.g. in an uploaded tree or
+ * set up by an admin) may still point anywhere. Before a file is touched, its real path (see
+ * {@link VirtualFileSystem#toRealPath}) has to be below the real path of the root, otherwise the
+ * operation fails with an {@link AccessDeniedException}. Links swapped between the check and the
+ * access aren't caught, FTP clients can't create links, so that takes local access to the host.
+ *
+ * Used by the session thread only, unconfined sessions skip the check.
+ */
+final class ConfinedFileSystem implements VirtualFileSystem {
+    private final VirtualFileSystem fileSystem;
+    public VirtualFileSystem getFileSystem() { return fileSystem; }
+
+    private String root = "/";
+    /**
+     * @return Path of the root on the file system, "/" if the session isn't confined
+     */
+    public String getRoot() { return root; }
+
+    private String realRoot; // null until the root is first checked against
+
+    ConfinedFileSystem(@NotNull final VirtualFileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * @param root Path of the root on the file system, "/" to give access to the whole file system
+     */
+    void setRoot(@NotNull final String root) {
+        this.root = root;
+        this.realRoot = null;
+    }
+
+    /**
+     * @return The path
+     * @throws AccessDeniedException if the real path of the file isn't below the root
+     */
+    private String check(@NotNull final String path) throws IOException {
+        if (root.equals("/")) {
+            return path;
+        }
+        if (realRoot == null) {
+            realRoot = fileSystem.toRealPath(root);
+        }
+        var real = fileSystem.toRealPath(path);
+        if (!realRoot.equals("/") && !real.equals(realRoot) && !real.startsWith(realRoot + "/")) {
+            throw new AccessDeniedException(path, null, "Link leads outside the root");
+        }
+        return path;
+    }
+
+    @Override
+    public FileChannel openRead(@NotNull final String path) throws IOException {
+        return fileSystem.openRead(check(path));
+    }
+
+    @Override
+    public FileChannel openWrite(@NotNull final String path) throws IOException {
+        return fileSystem.openWrite(check(path));
+    }
+
+    @Override
+    public BasicFileAttributes stat(@NotNull final String path, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        return fileSystem.stat(check(path), type);
+    }
+
+    @Override
+    public DirectoryStream<Entry> list(@NotNull final String directory, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        return fileSystem.list(check(directory), type);
+    }
+
+    @Override
+    public void mkdir(@NotNull final String path) throws IOException {
+        fileSystem.mkdir(check(path));
+    }
+
+    @Override
+    public void delete(@NotNull final String path) throws IOException {
+        fileSystem.delete(check(path));
+    }
+
+    @Override
+    public void rename(@NotNull final String source, @NotNull final String target) throws IOException {
+        fileSystem.rename(check(source), check(target));
+    }
+
+    @Override
+    public boolean isAccessible(@NotNull final String path, @NotNull final AccessMode mode) {
+        try {
+            return fileSystem.isAccessible(check(path), mode);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isPosix() {
+        return fileSystem.isPosix();
+    }
+
+    @Override
+    public String getDefaultDirectory() {
+        return fileSystem.getDefaultDirectory();
+    }
+
+    /**
+     * @return null if the real path of the file isn't below the root, so the attribute and listing
+     *         caches never answer for a file {@link #stat} would refuse
+     */
+    @Override
+    public Path toLocalPath(@NotNull final String path) {
+        try {
+            return fileSystem.toLocalPath(check(path));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toRealPath(@NotNull final String path) throws IOException {
+        return fileSystem.toRealPath(path);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConfinedFileSystem{fileSystem=%s, root=%s}", fileSystem, root);
+    }
+}
@@ -0,0 +1,143 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers successful logins, so clients logging in again and again don't cost a password hash
+ * each time.
+ *
+ * Only an HMAC of the password is kept, keyed with a secret created at startup. Entries live for a
+ * short time only and at most maxEntries are kept, the least recently used are evicted first.
+ * Failed logins are never cached, guessing passwords stays as expensive as the backend makes it.
+ */
+final class CredentialCache implements Authenticator {
+    private static final class Entry {
+        private final byte[] digest;
+        private final long expires;
+
+        private Entry(final byte[] digest, final long expires) {
+            this.digest = digest;
+            this.expires = expires;
+        }
+    }
+
+    private final Authenticator authenticator;
+    public Authenticator getAuthenticator() { return authenticator; }
+
+    private final int maxEntries;
+    public int getMaxEntries() { return maxEntries; }
+
+    private final long ttl;
+    /**
+     * @return Time in milliseconds a login is remembered
+     */
+    public long getTtl() { return ttl; }
+
+    private final SecretKeySpec key;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Guarded by this
+
+    private final AtomicLong hits = new AtomicLong();
+    public long getHits() { return hits.get(); }
+
+    private final AtomicLong misses = new AtomicLong();
+    public long getMisses() { return misses.get(); }
+
+    private final AtomicLong evictions = new AtomicLong();
+    public long getEvictions() { return evictions.get(); }
+
+    public synchronized int getSize() { return entries.size(); }
+
+    /**
+     * @param authenticator Backend checking the credentials which aren't cached
+     * @param maxEntries Number of users cached
+     * @param ttl Time in milliseconds a login is remembered
+     */
+    CredentialCache(@NotNull final Authenticator authenticator, final int maxEntries, final long ttl) {
+        if (maxEntries <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("Size and TTL must be positive");
+        }
+
+        this.authenticator = authenticator;
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        var secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+    }
+
+    @Override
+    public boolean isKnown(@NotNull final String username) {
+        return authenticator.isKnown(username);
+    }
+
+    @Override
+    public boolean authenticate(@NotNull final String username, @NotNull final String password) {
+        var digest = digest(username, password);
+        synchronized (this) {
+            var entry = entries.get(username);
+            if (entry != null) {
+                if (entry.expires - System.nanoTime() > 0 && MessageDigest.isEqual(entry.digest, digest)) {
+                    hits.incrementAndGet();
+                    return true;
+                }
+                if (entry.expires - System.nanoTime() <= 0) {
+                    entries.remove(username);
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        if (!authenticator.authenticate(username, password)) {
+            return false;
+        }
+
+        synchronized (this) {
+            entries.put(username, new Entry(digest, System.nanoTime() + ttl * 1_000_000L));
+
+            // Least recently used first
+            var iterator = entries.keySet().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget all logins, e.g. after the users have changed.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private byte[] digest(@NotNull final String username, @NotNull final String password) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            // Separates username and password
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            // Every Java platform has to support it
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CredentialCache[authenticator=%s, maxEntries=%d, ttl=%d, size=%d, hits=%d, misses=%d, evictions=%d]",
+                getAuthenticator(), getMaxEntries(), getTtl(), getSize(), getHits(), getMisses(), getEvictions());
+    }
+}
@@ -0,0 +1,159 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate transmission mode (MODE Z, draft-preston-ftpext-deflate).
+ *
+ * The data is sent as a single zlib stream (RFC1950). Memory use is fixed by the zlib window
+ * and the buffer size, no matter how large the file is.
+ */
+final class DeflateMode {
+    static final int DEFAULT_LEVEL = 6;
+    private static final byte[] EMPTY = new byte[0];
+
+    private DeflateMode() { }
+
+    /**
+     * Compresses everything written to it. Closing it finishes the zlib stream, the data
+     * connection itself stays open.
+     */
+    static final class Encoder implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final Deflater deflater;
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer out = pool.acquire();
+        private boolean open = true;
+
+        /**
+         * @param level Compression level, 0 (none) to 9 (best)
+         */
+        Encoder(@NotNull final WritableByteChannel target, final int level) {
+            this.target = target;
+            this.deflater = new Deflater(level);
+        }
+
+        @Override
+        public int write(@NotNull final ByteBuffer src) throws IOException {
+            var count = src.remaining();
+            deflater.setInput(src);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+            // The deflater keeps a reference to src, which is reused by the caller
+            deflater.setInput(EMPTY);
+            return count;
+        }
+
+        private void deflate() throws IOException {
+            deflater.deflate(out);
+            if (!out.hasRemaining() || deflater.finished()) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                target.write(out);
+            }
+            out.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+                flush();
+            } finally {
+                deflater.end();
+                pool.release(out);
+            }
+        }
+    }
+
+    /**
+     * Decompresses the data read from the data connection. Returns end of stream at the end of
+     * the zlib stream.
+     */
+    static final class Decoder implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final Inflater inflater = new Inflater();
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer in = pool.acquire();
+        private boolean eof = false;
+        private boolean open = true;
+
+        Decoder(@NotNull final ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(@NotNull final ByteBuffer dst) throws IOException {
+            var start = dst.position();
+            try {
+                while (dst.hasRemaining() && !inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (dst.position() > start) {
+                            // Hand out what we have before blocking again
+                            break;
+                        }
+                        if (eof) {
+                            throw new IOException("Deflate stream truncated");
+                        }
+                        in.clear();
+                        eof = source.read(in) == -1;
+                        in.flip();
+                        inflater.setInput(in);
+                        continue;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Deflate stream requires a preset dictionary");
+                    }
+                    inflater.inflate(dst);
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Invalid deflate stream: " + ex.getMessage(), ex);
+            }
+
+            var count = dst.position() - start;
+            return count == 0 && inflater.finished() ? -1 : count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && source.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The data connection is closed by its owner
+            if (open) {
+                open = false;
+                inflater.end();
+                pool.release(in);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Streams directory listings to a data connection.
+ *
+ * Entries are read one at a time from {@link VirtualFileSystem#list}, so even huge directories
+ * are never held in memory. All attributes of an entry are fetched together with the entry and
+ * {@link EplfEncoder} writes the lines straight into a pooled buffer.
+ *
+ * If a {@link ListingCache} is set, encoded listings of directories stored on the default file
+ * system are kept and sent again until the directory changes.
+ */
+final class DirectoryListing {
+    enum Format {
+        EPLF, // LIST
+        NAMES, // NLST
+        FACTS, // MLSD
+    }
+
+    private static volatile ListingCache cache = null;
+    static ListingCache getCache() { return cache; }
+    /**
+     * @param cache null to disable caching
+     */
+    static void setCache(final ListingCache cache) { DirectoryListing.cache = cache; }
+
+    private DirectoryListing() { }
+
+    /**
+     * Send the listing of path. If path is a file, only the file itself is listed.
+     *
+     * @param attributes Attributes of path
+     * @return Number of entries listed
+     */
+    static long write(@NotNull final VirtualFileSystem fileSystem, @NotNull final String path,
+                      @NotNull final BasicFileAttributes attributes, @NotNull final Format format,
+                      @NotNull final WritableByteChannel target)
+    throws IOException {
+        var cache = DirectoryListing.cache;
+        var local = cache == null || !attributes.isDirectory() ? null : fileSystem.toLocalPath(path);
+        if (local == null) {
+            return write(fileSystem, path, attributes, format, target, null, null);
+        }
+
+        var directory = local.toRealPath();
+        var listing = cache.get(directory, format);
+        if (listing != null) {
+            var data = ByteBuffer.wrap(listing.getData());
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+            return listing.getCount();
+        }
+
+        var generation = cache.prepare(directory);
+        if (generation < 0) {
+            return write(fileSystem, path, attributes, format, target, null, null);
+        }
+        var copy = new Copy(cache.getMaxListingSize());
+        long count;
+        try {
+            count = write(fileSystem, path, attributes, format, target, copy, null);
+        } catch (IOException ex) {
+            cache.discard(directory);
+            throw ex;
+        }
+        if (copy.isComplete()) {
+            cache.put(directory, format, generation, copy.toByteArray(), count);
+        } else {
+            // Too large, don't keep watching it
+            cache.discard(directory);
+        }
+        return count;
+    }
+
+    /**
+     * Send the MLSD listing of a directory. Listings with facts aren't cached, they depend on the
+     * facts selected by the client.
+     *
+     * @return Number of entries listed
+     */
+    static long write(@NotNull final VirtualFileSystem fileSystem, @NotNull final String directory,
+                      @NotNull final Set<MachineListing.Fact> facts, @NotNull final WritableByteChannel target)
+    throws IOException {
+        var machineListing = new MachineListing(facts, fileSystem, directory);
+        var attributes = fileSystem.stat(directory, machineListing.getAttributesType());
+        return write(fileSystem, directory, attributes, Format.FACTS, target, null, machineListing);
+    }
+
+    /**
+     * Drop cached listings of a directory after the server changed it.
+     */
+    static void invalidate(@NotNull final Path directory) {
+        var cache = DirectoryListing.cache;
+        if (cache == null) {
+            return;
+        }
+
+        try {
+            cache.invalidate(directory.toRealPath());
+        } catch (IOException ex) {
+            // Directory has been removed
+            cache.invalidate(directory.toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * @param machineListing Encoder for {@link Format#FACTS}, null otherwise
+     */
+    private static long write(@NotNull final VirtualFileSystem fileSystem, @NotNull final String path,
+                              @NotNull final BasicFileAttributes attributes,
+                              @NotNull final Format format, @NotNull final WritableByteChannel target, final Copy copy,
+                              final MachineListing machineListing)
+    throws IOException {
+        var pool = FileTransfer.getBufferPool();
+        var buffer = pool.acquire();
+        try {
+            var encoder = new Encoder(format, machineListing, copy);
+            var attributesType = machineListing == null ? BasicFileAttributes.class : machineListing.getAttributesType();
+            long count = 0;
+            if (!attributes.isDirectory()) {
+                put(buffer, encoder, path, VirtualFileSystem.getName(path), attributes, target);
+                ++count;
+            } else {
+                // Entries deleted while listing are skipped by the file system
+                try (var stream = fileSystem.list(path, attributesType)) {
+                    var prefix = path.endsWith("/") ? path : path + "/";
+                    for (var entry : stream) {
+                        // Paths are only needed for the perm fact
+                        var entryPath = machineListing == null ? null : prefix + entry.getName();
+                        put(buffer, encoder, entryPath, entry.getName(), entry.getAttributes(), target);
+                        ++count;
+                    }
+                }
+            }
+
+            flush(buffer, target);
+            return count;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Encode the line of one entry into the buffer, flushing it first if the line doesn't fit.
+     *
+     * @param path Virtual path of the entry, may be null unless listing facts
+     */
+    private static void put(@NotNull final ByteBuffer buffer, @NotNull final Encoder encoder,
+                            final String path, @NotNull final String name, @NotNull final BasicFileAttributes attributes,
+                            @NotNull final WritableByteChannel target)
+    throws IOException {
+        var length = encoder.maxLength(name, attributes);
+        if (length > buffer.remaining()) {
+            flush(buffer, target);
+            if (length > buffer.remaining()) {
+                // Longer than the whole buffer
+                var line = ByteBuffer.allocate(length);
+                encoder.encode(line, path, name, attributes);
+                flush(line, target);
+                return;
+            }
+        }
+        encoder.encode(buffer, path, name, attributes);
+    }
+
+    private static void flush(@NotNull final ByteBuffer buffer, @NotNull final WritableByteChannel target)
+    throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Encodes lines in one of the formats.
+     */
+    private static final class Encoder {
+        private final Format format;
+        private final MachineListing machineListing;
+        private final Copy copy;
+        private final EplfEncoder eplfEncoder = new EplfEncoder();
+
+        private Encoder(@NotNull final Format format, final MachineListing machineListing, final Copy copy) {
+            this.format = format;
+            this.machineListing = machineListing;
+            this.copy = copy;
+        }
+
+        int maxLength(@NotNull final String name, @NotNull final BasicFileAttributes attributes) {
+            switch (format) {
+                case NAMES:
+                    return EplfEncoder.maxNameLength(name);
+                case FACTS:
+                    return machineListing.maxLength(name, attributes);
+                default:
+                    return EplfEncoder.maxLength(name);
+            }
+        }
+
+        void encode(@NotNull final ByteBuffer buffer, final String path, @NotNull final String name,
+                    @NotNull final BasicFileAttributes attributes) {
+            var start = buffer.position();
+            switch (format) {
+                case NAMES:
+                    eplfEncoder.encodeName(buffer, name);
+                    break;
+                case FACTS:
+                    machineListing.encode(buffer, path, name, attributes);
+                    break;
+                default:
+                    eplfEncoder.encode(buffer, name, attributes);
+                    break;
+            }
+            if (copy != null) {
+                copy.add(buffer, start, buffer.position());
+            }
+        }
+    }
+
+    /**
+     * Collects a listing for the cache, up to a limit.
+     */
+    private static final class Copy {
+        private final int limit;
+        private byte[] data = new byte[1024];
+        private int size = 0;
+        private boolean complete = true;
+
+        private Copy(final int limit) {
+            this.limit = limit;
+        }
+
+        boolean isComplete() { return complete; }
+
+        byte[] toByteArray() { return Arrays.copyOf(data, size); }
+
+        void add(@NotNull final ByteBuffer buffer, final int from, final int to) {
+            if (!complete) {
+                return;
+            }
+
+            var length = to - from;
+            if (length > limit - size) {
+                complete = false;
+                data = null;
+                return;
+            }
+            if (size + length > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(Math.max((long) data.length * 2, size + length), limit));
+            }
+            buffer.get(from, data, size, length);
+            size += length;
+        }
+    }
+}
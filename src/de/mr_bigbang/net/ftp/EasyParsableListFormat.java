@@ -3,6 +3,7 @@ package de.mr_bigbang.net.ftp;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Date;
 
@@ -59,9 +60,14 @@ class EasyParsableListFormat {
         return this;
     }
 
-    public EasyParsableListFormat addIdentifierFact() {
-        // TODO How to get unique ID?
-        facts.add("i" + "123456789");
+    /**
+     * @param fileKey Key of the file, see {@link BasicFileAttributes#fileKey()}
+     */
+    public EasyParsableListFormat addIdentifierFact(@NotNull Object fileKey) {
+        var identifier = EplfEncoder.identifier(fileKey);
+        if (identifier != null) {
+            facts.add("i" + identifier);
+        }
         return this;
     }
 
@@ -100,8 +106,27 @@ class EasyParsableListFormat {
         }
     }
 
+    /**
+     * @param name Name of the file
+     * @param attributes Attributes of the file, read with a single call
+     */
+    public EasyParsableListFormat(@NotNull String name, @NotNull BasicFileAttributes attributes) {
+        this.setName(name);
+        if (attributes.fileKey() != null) {
+            this.addIdentifierFact(attributes.fileKey());
+        }
+        this.addModifiedFact(attributes.lastModifiedTime().toMillis());
+
+        if (attributes.isRegularFile()) {
+            this.addRetrFact();
+            this.addSizeFact(attributes.size());
+        } else if (attributes.isDirectory()) {
+            this.addCwdFact();
+        }
+    }
+
     @Override
     public String toString() {
-        return String.format("+%s,\t%s\r\n", String.join(",", facts), getName());
+        return "+" + String.join(",", facts) + ",\t" + getName() + "\r\n";
     }
 }
@@ -0,0 +1,182 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Writes listing lines straight into a buffer, without building strings for the facts.
+ *
+ * Produces the same lines as {@link EasyParsableListFormat}, plus the identifier fact taken from
+ * {@link BasicFileAttributes#fileKey()}. An encoder keeps scratch space and must not be shared
+ * between threads, create one per listing.
+ */
+final class EplfEncoder {
+    private static final Charset CHARSET = ReplyWriter.CHARSET;
+    private static final boolean ASCII_COMPATIBLE = CHARSET.equals(StandardCharsets.UTF_8)
+            || CHARSET.equals(StandardCharsets.ISO_8859_1) || CHARSET.equals(StandardCharsets.US_ASCII);
+    private static final int MAX_BYTES_PER_CHAR = (int) Math.ceil(CHARSET.newEncoder().maxBytesPerChar());
+    // Longer identifiers are left out
+    static final int MAX_IDENTIFIER_LENGTH = 64;
+    // "+", "i" + identifier + ",", "m" + 19 digits + ",", "r,", "s" + 19 digits + ",", "\t" and "\r\n"
+    private static final int MAX_FACTS_LENGTH = 1 + (2 + MAX_IDENTIFIER_LENGTH) + 21 + 2 + 21 + 1 + 2;
+
+    private final byte[] digits = new byte[20];
+    private final CharsetEncoder encoder = CHARSET.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * @return Upper bound of the bytes needed by {@link #encode}
+     */
+    static int maxLength(@NotNull final String name) {
+        return MAX_FACTS_LENGTH + maxNameLength(name);
+    }
+
+    /**
+     * @return Upper bound of the bytes needed by {@link #encodeName}
+     */
+    static int maxNameLength(@NotNull final String name) {
+        return name.length() * MAX_BYTES_PER_CHAR + 2;
+    }
+
+    /**
+     * Write an EPLF line, the caller has to make sure there's room for {@link #maxLength(String)} bytes.
+     */
+    void encode(@NotNull final ByteBuffer target, @NotNull final String name, @NotNull final BasicFileAttributes attributes) {
+        target.put((byte) '+');
+
+        var key = attributes.fileKey();
+        if (key != null) {
+            var start = target.position();
+            target.put((byte) 'i');
+            if (putFileKey(target, key.toString())) {
+                target.put((byte) ',');
+            } else {
+                target.position(start);
+            }
+        }
+
+        target.put((byte) 'm');
+        putLong(target, attributes.lastModifiedTime().toMillis() / 1000);
+        target.put((byte) ',');
+
+        if (attributes.isRegularFile()) {
+            target.put((byte) 'r').put((byte) ',');
+            target.put((byte) 's');
+            putLong(target, attributes.size());
+            target.put((byte) ',');
+        } else if (attributes.isDirectory()) {
+            target.put((byte) '/').put((byte) ',');
+        }
+
+        target.put((byte) '\t');
+        encodeName(target, name);
+    }
+
+    /**
+     * Write a name followed by CRLF, the caller has to make sure there's room for {@link #maxNameLength} bytes.
+     */
+    void encodeName(@NotNull final ByteBuffer target, @NotNull final String name) {
+        var length = name.length();
+        var i = 0;
+        // Most names are plain ASCII, no need for the encoder
+        while (ASCII_COMPATIBLE && i < length) {
+            var c = name.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            target.put((byte) c);
+            ++i;
+        }
+        if (i < length) {
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(name, i, length), target, true);
+            encoder.flush(target);
+        }
+        target.put((byte) '\r').put((byte) '\n');
+    }
+
+    /**
+     * Turn a file key into a unique identifier, e.g. "(dev=803,ino=1234)" into "803.1234".
+     *
+     * File keys don't expose their fields, so the values are taken from the string
+     * representation. If that has no "name=value" pairs, the alphanumeric characters are used.
+     * At most {@link #MAX_IDENTIFIER_LENGTH} bytes are written.
+     *
+     * @return false if nothing has been written
+     */
+    static boolean putFileKey(@NotNull final ByteBuffer target, @NotNull final String key) {
+        var length = key.length();
+        var start = target.position();
+
+        var values = key.indexOf('=') >= 0;
+        var inValue = !values;
+        var first = true;
+        for (var i = 0; i < length; ++i) {
+            var c = key.charAt(i);
+            if (values && c == '=') {
+                inValue = true;
+                if (!first) {
+                    if (target.position() - start >= MAX_IDENTIFIER_LENGTH) {
+                        target.position(start);
+                        return false;
+                    }
+                    target.put((byte) '.');
+                }
+                first = false;
+            } else if (inValue && isAlphanumeric(c)) {
+                if (target.position() - start >= MAX_IDENTIFIER_LENGTH) {
+                    target.position(start);
+                    return false;
+                }
+                target.put((byte) c);
+            } else if (values) {
+                inValue = false;
+            }
+        }
+
+        return target.position() != start;
+    }
+
+    private static boolean isAlphanumeric(final char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * @return EPLF identifier of a file key, null if it doesn't yield one
+     */
+    static String identifier(@NotNull final Object fileKey) {
+        var key = fileKey.toString();
+        var buffer = ByteBuffer.allocate(MAX_IDENTIFIER_LENGTH);
+        if (!putFileKey(buffer, key)) {
+            return null;
+        }
+        return new String(buffer.array(), 0, buffer.position(), CHARSET);
+    }
+
+    /**
+     * Write a non-negative number in decimal, negative numbers are written as 0.
+     */
+    void putLong(@NotNull final ByteBuffer target, final long value) {
+        if (value < 0) {
+            // Modification times before 1970
+            target.put((byte) '0');
+            return;
+        }
+
+        var v = value;
+        var i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        target.put(digits, i, digits.length - i);
+    }
+}
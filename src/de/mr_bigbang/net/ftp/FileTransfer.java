@@ -0,0 +1,141 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams file contents between files and data connections.
+ *
+ * The whole file is never held on the heap: {@link #send} hands the bytes to the kernel with
+ * {@link FileChannel#transferTo} (sendfile on Linux), {@link #copy} moves them through a pooled
+ * buffer for transfers that have to touch every byte (e.g. TYPE A conversion).
+ * All file access is positional, so transfers can start at a REST marker.
+ */
+final class FileTransfer {
+    /**
+     * Upper bound for a single transferTo call. Some platforms silently cap larger requests anyway
+     * and smaller chunks keep a single call from blocking for too long.
+     */
+    static final long CHUNK_SIZE = 8L * 1024 * 1024;
+
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    static final int DEFAULT_BUFFER_POOL_CAPACITY = 64;
+
+    private static volatile BufferPool bufferPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_POOL_CAPACITY);
+    static BufferPool getBufferPool() { return bufferPool; }
+
+    /**
+     * Replace the shared buffer pool. Buffers of the old pool still in use go back to it once released.
+     */
+    static void setBufferPool(@NotNull final BufferPool pool) {
+        bufferPool = pool;
+    }
+
+    private FileTransfer() { }
+
+    /**
+     * Zero-copy transfer of at most length bytes of the file, starting at position.
+     *
+     * @param length Bytes to send, Long.MAX_VALUE for the rest of the file
+     * @param throttle Rate limit, null for none
+     * @return Number of bytes transferred
+     */
+    static long send(@NotNull final FileChannel source, final long position, final long length,
+                     @NotNull final WritableByteChannel target, final Throttle throttle)
+    throws IOException {
+        var chunkSize = throttle != null ? Math.min(CHUNK_SIZE, throttle.getChunkSize()) : CHUNK_SIZE;
+        var offset = position;
+        var end = position + Math.min(length, Math.max(0, source.size() - position));
+        while (offset < end) {
+            var count = source.transferTo(offset, Math.min(chunkSize, end - offset), target);
+            if (count <= 0) {
+                // File has been truncated while sending
+                break;
+            }
+            offset += count;
+            if (throttle != null) {
+                throttle.transferred(count);
+            }
+        }
+        return offset - position;
+    }
+
+    /**
+     * Copy at most length bytes of the file, starting at position, through a pooled buffer.
+     *
+     * @param length Bytes to copy, Long.MAX_VALUE for the rest of the file
+     * @return Number of bytes transferred
+     */
+    static long copy(@NotNull final FileChannel source, final long position, final long length,
+                     @NotNull final WritableByteChannel target)
+    throws IOException {
+        var pool = bufferPool;
+        var buffer = pool.acquire();
+        try {
+            var offset = position;
+            var remaining = length;
+            while (remaining > 0) {
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                var count = source.read(buffer, offset);
+                if (count == -1) {
+                    break;
+                }
+                offset += count;
+                remaining -= count;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+            }
+            return offset - position;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Write everything read from the data connection into the file, starting at position.
+     *
+     * The pooled buffer is filled before it is written, so the file sees few large writes even if
+     * the socket delivers small segments.
+     *
+     * @return Number of bytes received
+     */
+    static long receive(@NotNull final ReadableByteChannel source, @NotNull final FileChannel target, final long position)
+    throws IOException {
+        var pool = bufferPool;
+        var buffer = pool.acquire();
+        try {
+            var offset = position;
+            while (source.read(buffer) != -1) {
+                if (!buffer.hasRemaining()) {
+                    offset += write(buffer, target, offset);
+                }
+            }
+            offset += write(buffer, target, offset);
+            return offset - position;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Write the buffer's content to the file and clear it.
+     */
+    private static long write(@NotNull final ByteBuffer buffer, @NotNull final FileChannel target, final long position)
+    throws IOException {
+        buffer.flip();
+        var offset = position;
+        while (buffer.hasRemaining()) {
+            offset += target.write(buffer, offset);
+        }
+        buffer.clear();
+        return offset - position;
+    }
+}
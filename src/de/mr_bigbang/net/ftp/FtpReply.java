@@ -1,7 +1,23 @@
 package de.mr_bigbang.net.ftp;
 
+import java.util.Arrays;
+
 class FtpReply {
-    private final String SYSTEM_TYPE = "UNKNOWN";
+    private static final String SYSTEM_TYPE = "UNKNOWN";
+    private static final String NOT_IMPLEMENTED = "--- --- NOT IMPLEMENTED --- ---";
+
+    /**
+     * Default replies encoded once, indexed by code.
+     */
+    private static final byte[][] ENCODED_DEFAULTS = new byte[600][];
+    static {
+        for (var code = 100; code < ENCODED_DEFAULTS.length; ++code) {
+            var message = getDefaultMessage(code);
+            if (!NOT_IMPLEMENTED.equals(message)) {
+                ENCODED_DEFAULTS[code] = encode(code, message);
+            }
+        }
+    }
 
     //region Properties
     private int code;
@@ -27,6 +43,18 @@ class FtpReply {
         }
 
         this.message = message;
+        this.encoded = null;
+    }
+
+    private byte[] encoded;
+    /**
+     * @return The reply line "code message\r\n" as sent to the client
+     */
+    public byte[] getBytes() {
+        if (encoded == null) {
+            encoded = encode(getCode(), getMessage());
+        }
+        return encoded;
     }
     //endregion
 
@@ -37,71 +65,82 @@ class FtpReply {
 
     public FtpReply(int code) {
         this.setCode(code);
-        // Set default messages
+        this.setMessage(getDefaultMessage(code));
+        if (code < ENCODED_DEFAULTS.length) {
+            this.encoded = ENCODED_DEFAULTS[code];
+        }
+    }
+
+    private static byte[] encode(int code, String message) {
+        var bytes = (code + " " + message).getBytes(ReplyWriter.CHARSET);
+        var line = Arrays.copyOf(bytes, bytes.length + 2);
+        line[bytes.length] = '\r';
+        line[bytes.length + 1] = '\n';
+        return line;
+    }
+
+    private static String getDefaultMessage(int code) {
         switch (code) {
             case 125:
-                this.setMessage("Data connection already open; transfer starting.");
-                break;
+                return "Data connection already open; transfer starting.";
             case 150:
-                this.setMessage("File status okay; about to open data connection.");
-                break;
+                return "File status okay; about to open data connection.";
             case 200:
-                this.setMessage("Command okay.");
-                break;
+                return "Command okay.";
+            case 202:
+                return "Command not implemented, superfluous at this site.";
             case 211:
-                this.setMessage("System status, or system help reply.");
-                break;
+                return "System status, or system help reply.";
+            case 213:
+                return "File status.";
             case 215:
-                this.setMessage(String.format("%s system type.", this.SYSTEM_TYPE));
-                break;
+                return String.format("%s system type.", SYSTEM_TYPE);
             case 220:
-                this.setMessage("Service ready for new user.");
-                break;
+                return "Service ready for new user.";
             case 221:
-                this.setMessage("Service closing control connection.");
-                break;
+                return "Service closing control connection.";
             case 226:
-                this.setMessage("Closing data connection.");
-                break;
+                return "Closing data connection.";
             case 230:
-                this.setMessage("User logged in, proceed.");
-                break;
+                return "User logged in, proceed.";
             case 250:
-                this.setMessage("Requested file action okay, completed.");
-                break;
+                return "Requested file action okay, completed.";
             case 257:
-                this.setMessage("\"PATHNAME\" created.");
-                break;
+                return "\"PATHNAME\" created.";
             case 331:
-                this.setMessage("User name okay, need password.");
-                break;
+                return "User name okay, need password.";
             case 332:
-                this.setMessage("Need account for login.");
-                break;
+                return "Need account for login.";
             case 350:
-                this.setMessage("Requested file action pending further information.");
-                break;
+                return "Requested file action pending further information.";
+            case 421:
+                return "Service not available, closing control connection.";
+            case 425:
+                return "Can't open data connection.";
+            case 426:
+                return "Connection closed; transfer aborted.";
             case 450:
-                this.setMessage("Requested file action not taken.");
-                break;
+                return "Requested file action not taken.";
+            case 451:
+                return "Requested action aborted: local error in processing.";
             case 501:
-                this.setMessage("Syntax error in parameters or arguments.");
-                break;
+                return "Syntax error in parameters or arguments.";
             case 502:
-                this.setMessage("Command not implemented.");
-                break;
+                return "Command not implemented.";
             case 503:
-                this.setMessage("Bad sequence of commands.");
-                break;
+                return "Bad sequence of commands.";
+            case 504:
+                return "Command not implemented for that parameter.";
+            case 522:
+                return "Network protocol not supported, use (1,2)";
             case 530:
-                this.setMessage("Not logged in.");
-                break;
+                return "Not logged in.";
             case 550:
-                this.setMessage("Requested action not taken.");
-                break;
+                return "Requested action not taken.";
+            case 553:
+                return "Requested action not taken. File name not allowed.";
             default:
-                this.setMessage("--- --- NOT IMPLEMENTED --- ---");
-                break;
+                return NOT_IMPLEMENTED;
         }
     }
 }
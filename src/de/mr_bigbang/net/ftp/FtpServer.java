@@ -4,10 +4,18 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Locale;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.EnumSet;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 // TODO Flags for RFC support level?
 // if (RFC2389) { FEAT(); } else { sendReply(new FtpReply(502, "Command not implemented.")); }
@@ -17,15 +25,22 @@ public class FtpServer implements Runnable {
     /*
      *  Config
      */
-    private final Map<String, String> users = new HashMap<>();
+    private static volatile Authenticator authenticator = Authenticator.NONE;
+    /**
+     * @param authenticator Checks the credentials of all sessions, anonymous logins aside
+     */
+    static void setAuthenticator(@NotNull final Authenticator authenticator) { FtpServer.authenticator = authenticator; }
 
-    private boolean strictMode = true; // Prevent non-compliant behaviour (like LIST -a)
-    public boolean getStrictMode() { return strictMode; }
-    protected void setStrictMode(final boolean strictMode) { this.strictMode = strictMode; }
+    private static volatile LoginThrottle loginThrottle;
+    static LoginThrottle getLoginThrottle() { return loginThrottle; }
+    /**
+     * @param throttle Counts failed logins of all sessions, null to allow unlimited attempts
+     */
+    static void setLoginThrottle(final LoginThrottle throttle) { loginThrottle = throttle; }
 
-    private boolean anonymousLogin = false;
-    public boolean getAnonymousLogin() { return anonymousLogin; }
-    protected void setAnonymousLogin(final boolean anonymousLogin){ this.anonymousLogin = anonymousLogin; }
+    // Read from the current config, a reload applies to running sessions as well
+    public boolean getStrictMode() { return ServerConfig.get().getStrictMode(); }
+    public boolean getAnonymousLogin() { return ServerConfig.get().getAnonymousLogin(); }
 
     /*
      *  State
@@ -37,16 +52,54 @@ public class FtpServer implements Runnable {
 
     private String username;
     public String getUsername() { return username; }
-    protected void setUsername(@NotNull final String username) { this.username = username; }
+    protected void setUsername(@NotNull final String username) {
+        this.username = username;
+        log.setUser(username);
+    }
 
     private boolean authorised = false;
     public boolean getAutorised() { return authorised; }
-    protected void setAuthorised(final boolean authorised) { this.authorised = authorised; }
+    protected void setAuthorised(final boolean authorised) {
+        this.authorised = authorised;
+        if (authorised) {
+            paths.setRoot(getUserRoot(getUsername()));
+            vfs.setRoot(paths.getRoot());
+            // The user buckets belong to the name logged in with
+            downloadThrottle = null;
+            uploadThrottle = null;
+            throttleLimits = null;
+            updateThrottles();
+        }
+    }
+
+    /**
+     * Rate limits of this session, null if unlimited
+     */
+    private Throttle downloadThrottle;
+    private Throttle uploadThrottle;
+    private BandwidthLimits throttleLimits; // Limits the throttles were made from
+
+    /**
+     * Make new throttles if the limits have been reloaded since, so they apply from the next transfer on.
+     */
+    private void updateThrottles() {
+        var limits = bandwidthLimits;
+        if (limits == throttleLimits) {
+            return;
+        }
+        throttleLimits = limits;
+        downloadThrottle = limits != null ? limits.newDownloadThrottle(getUsername()) : null;
+        uploadThrottle = limits != null ? limits.newUploadThrottle(getUsername()) : null;
+    }
 
     boolean passiveMode = true;
     private void setPassiveMode(final boolean passiveMode) { this.passiveMode = passiveMode; }
     public boolean getPassiveMode() { return this.passiveMode; }
 
+    private boolean extendedPassiveOnly = false; // EPSV ALL (RFC2428 P. 5)
+    public boolean getExtendedPassiveOnly() { return extendedPassiveOnly; }
+    protected void setExtendedPassiveOnly(final boolean extendedPassiveOnly) { this.extendedPassiveOnly = extendedPassiveOnly; }
+
     private InetAddress clientAddress;
     protected InetAddress getClientAddress() { return clientAddress; }
     protected void setClientAddress(final InetAddress clientAddress) { this.clientAddress = clientAddress; }
@@ -55,6 +108,19 @@ public class FtpServer implements Runnable {
     protected int getClientPort() { return clientPort; }
     protected void setClientPort(final int clientPort) { this.clientPort = clientPort; }
 
+    private Set<MachineListing.Fact> mlstFacts = MachineListing.DEFAULT_FACTS; // OPTS MLST (RFC3659 7.9)
+    public Set<MachineListing.Fact> getMlstFacts() { return mlstFacts; }
+    protected void setMlstFacts(@NotNull final Set<MachineListing.Fact> mlstFacts) { this.mlstFacts = mlstFacts; }
+
+    private int deflateLevel = DeflateMode.DEFAULT_LEVEL; // OPTS MODE Z LEVEL
+    public int getDeflateLevel() { return deflateLevel; }
+    protected void setDeflateLevel(final int deflateLevel) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException();
+        }
+        this.deflateLevel = deflateLevel;
+    }
+
     private long startPosition = 0;
     protected long getStartPosition() { return startPosition; }
     protected void setStartPosition(final long startPosition) {
@@ -63,59 +129,217 @@ public class FtpServer implements Runnable {
         }
         this.startPosition = startPosition;
     }
-    //endregion
 
-    // Default directory = Location from which the Server was started
-    File currentDirectoryPath = new File(System.getProperty("user.dir"));
-    public String getCurrentDirectoryPath() {
-        try {
-            // Some clients (like WinSCP) don't recognise Windows-style paths
-            return currentDirectoryPath.getCanonicalPath().replace('\\', '/');
-        } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
-            return new File(System.getProperty("user.dir")).getPath();
+    private long endPosition = -1; // RANG, last byte to transfer, -1 for the end of the file
+    protected long getEndPosition() { return endPosition; }
+    protected void setEndPosition(final long endPosition) { this.endPosition = endPosition; }
+
+    /**
+     * @return Bytes to transfer from the start position, Long.MAX_VALUE for the rest of the file
+     */
+    protected long getTransferLength() {
+        return endPosition < 0 ? Long.MAX_VALUE : endPosition - startPosition + 1;
+    }
+
+    private int parallelSegments = 1; // OPTS RETR PARALLEL
+    public int getParallelSegments() { return parallelSegments; }
+    protected void setParallelSegments(final int parallelSegments) {
+        if (parallelSegments < 1 || parallelSegments > maxParallelSegments) {
+            throw new IllegalArgumentException();
         }
+        this.parallelSegments = parallelSegments;
     }
+    //endregion
+
+    private static volatile VirtualFileSystem fileSystem = new LocalFileSystem();
+    static VirtualFileSystem getFileSystem() { return fileSystem; }
+    /**
+     * @param fileSystem Storage of all sessions started afterwards
+     */
+    static void setFileSystem(@NotNull final VirtualFileSystem fileSystem) { FtpServer.fileSystem = fileSystem; }
+
+    /**
+     * Storage of this session, sessions keep theirs if the server's changes
+     */
+    private final ConfinedFileSystem vfs = new ConfinedFileSystem(fileSystem);
+
+    private static volatile Map<String, String> userRoots = Map.of();
+    private static volatile String defaultRoot = null;
     /**
-     * Change current directory
+     * Confine users to a directory of the file system, which they see as "/".
      *
-     * @param pathname Pathname may be absolute or relative
+     * @param roots Root directory of each user, e.g. "anonymous" -> "/srv/ftp"
+     * @param defaultRoot Root of users not in roots, null for the whole file system
      */
-    protected void setCurrentDirectoryPath(@NotNull final String pathname) {
-        var cwd = new File(pathname);
-        if (cwd.isAbsolute()) {
-            currentDirectoryPath = cwd;
-        } else {
-            currentDirectoryPath = new File(currentDirectoryPath.getPath(), pathname);
-        }
+    static void setUserRoots(@NotNull final Map<String, String> roots, final String defaultRoot) {
+        userRoots = Map.copyOf(roots);
+        FtpServer.defaultRoot = defaultRoot;
+    }
+
+    /**
+     * @return Root directory of the user, null if the user isn't confined
+     */
+    static String getUserRoot(@NotNull final String username) {
+        return userRoots.getOrDefault(username, defaultRoot);
+    }
+
+    // Default directory = Location from which the Server was started, root directory of the user after login
+    private final PathResolver paths = new PathResolver(vfs);
+    public String getCurrentDirectoryPath() {
+        return paths.getCurrentDirectory();
     }
 
-    protected File[] getCurrentDirectoryFiles() {
-        var files = currentDirectoryPath.listFiles();
-        return Objects.requireNonNullElseGet(files, () -> new File[0]);
+    /**
+     * @param pathname Absolute pathname or pathname relative to the current directory
+     * @return Virtual path of the file system, never outside the root of the user
+     */
+    protected String resolve(@NotNull final String pathname) {
+        return paths.locate(pathname);
     }
 
+    private String renameFrom; // RNFR, null if no rename is pending
+
     /**
      * Connection established by client to send FTP commands
      */
     private final Socket cmdConnection;
+    private final Logger log;
     private BufferedReader br;
-    private PrintWriter bw;
+    private ReplyWriter bw; // Guarded by replyLock
+    // Segments reply from their own threads
+    private final Object replyLock = new Object();
+
+    /**
+     * Listeners for passive FTP, shared by all sessions.
+     */
+    private static volatile PassivePortManager passivePortManager;
+    static void setPassivePortManager(final PassivePortManager manager) { passivePortManager = manager; }
+
+    private static volatile AttributeCache attributeCache;
+    /**
+     * @param cache Cache for SIZE and MDTM, null to read the attributes for every command
+     */
+    static void setAttributeCache(final AttributeCache cache) { attributeCache = cache; }
+
+    private static volatile Executor segmentExecutor;
+    private static volatile int maxParallelSegments = 1;
+    /**
+     * @param executor Runs the segments of parallel RETRs, null to disable them
+     * @param maxSegments Segments a session may retrieve at the same time
+     */
+    static void setParallelRetrieval(final Executor executor, final int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("Maximum segment count must be positive");
+        }
+        segmentExecutor = executor;
+        maxParallelSegments = maxSegments;
+    }
+
+    /**
+     * @return false if parallel segments are disabled on this server
+     */
+    static boolean isParallelRetrievalEnabled() {
+        return segmentExecutor != null && maxParallelSegments > 1;
+    }
+
+    private final SegmentedRetrieval segments = new SegmentedRetrieval();
+
+    private static volatile BandwidthLimits bandwidthLimits;
+    /**
+     * @param limits Rate limits for all sessions from their next transfer on, null for none
+     */
+    static void setBandwidthLimits(final BandwidthLimits limits) { bandwidthLimits = limits; }
+
+    private static volatile long restartMarkerInterval = BlockMode.DEFAULT_MARKER_INTERVAL;
+    /**
+     * @param interval Bytes between restart markers in block mode, 0 for none
+     */
+    static void setRestartMarkerInterval(final long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Restart marker interval must not be negative");
+        }
+        restartMarkerInterval = interval;
+    }
+
+    /**
+     * Restart markers of the last upload in block mode and the file offsets they stand for, so
+     * the client can resume with REST and its own marker.
+     */
+    private final Map<String, Long> restartMarkers = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+            return size() > MAX_RESTART_MARKERS;
+        }
+    };
+    private static final int MAX_RESTART_MARKERS = 1024;
+
+    /**
+     * Listener for passive FTP.
+     *
+     * Leased with PASV command, given back once the data connection has been accepted.
+     */
+    private PassivePortManager.Lease passiveListener;
+
+    /**
+     * Accept the data connection for passive FTP.
+     *
+     * @return Socket backed by a {@link SocketChannel}
+     */
+    protected Socket acceptPassiveDataConnection() throws IOException {
+        var lease = passiveListener;
+        passiveListener = null;
+        if (lease == null) {
+            throw new IOException("No passive listener, PASV required");
+        }
+        return lease.accept(cmdConnection.getInetAddress());
+    }
+
+    /**
+     * Open the data connection as negotiated by PORT/EPRT or PASV/EPSV.
+     *
+     * @return Socket backed by a {@link SocketChannel}
+     */
+    protected Socket openDataConnection() throws IOException {
+        return getPassiveMode() ? acceptPassiveDataConnection() : openActiveDataConnection();
+    }
+
+    /**
+     * Give back resources held for data connections. Called when the session ends.
+     */
+    protected void closeDataConnections() {
+        releasePassiveListener();
+        segments.abort();
+    }
+
+    private void releasePassiveListener() {
+        if (passiveListener != null) {
+            passiveListener.release();
+            passiveListener = null;
+        }
+    }
 
     /**
-     * Socket for passive FTP.
+     * Open data connection to the client for active FTP.
      *
-     * Initialised with PASV command.
+     * @return Socket backed by a {@link SocketChannel}
      */
-    private ServerSocket dataConnection;
+    protected Socket openActiveDataConnection() throws IOException {
+        var s = SocketChannel.open().socket();
+        try {
+            // Port 20 is shared by all active data connections, the previous one may still linger in TIME_WAIT
+            s.setReuseAddress(true);
+            s.bind(new InetSocketAddress(20));
+            s.connect(new InetSocketAddress(getClientAddress(), getClientPort()));
+        } catch (IOException ex) {
+            s.close();
+            throw ex;
+        }
+        return s;
+    }
 
     public FtpServer(final Socket s) {
         cmdConnection = s;
-
-        // TODO Read from config / commandline
-        users.put("michael", "123456");
-        setStrictMode(false);
-        setAnonymousLogin(true);
+        log = Logger.forSession(s.getRemoteSocketAddress());
 
         try {
             // Connection has been established, get In-/Output-Streams
@@ -123,372 +347,202 @@ public class FtpServer implements Runnable {
             var is = cmdConnection.getInputStream();
 
             this.br = new BufferedReader(new InputStreamReader(is));
-            this.bw = new PrintWriter(new OutputStreamWriter(os));
+            this.bw = new ReplyWriter(new BufferedOutputStream(os));
         } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
+            log.error("IOException: " + ex.getMessage());
         }
     }
 
+    /**
+     * Session driven by the {@link SelectorEngine}.
+     *
+     * Commands are read by the engine and passed to {@link #parseCommand(String)}, replies are written to os.
+     *
+     * @param s Control connection, backed by a non-blocking {@link SocketChannel}
+     * @param os Stream accepting the replies
+     */
+    FtpServer(final Socket s, final OutputStream os) {
+        cmdConnection = s;
+        log = Logger.forSession(s.getRemoteSocketAddress());
+
+        this.bw = new ReplyWriter(os);
+    }
+
     /**
      * Parse FTP commands received from client and take appropriate actions.
      *
      * @param command FTP command sent by client
      */
     protected void parseCommand(final String command) {
-        System.out.println("CLIENT: " + command);
+        if (Logger.isTraceEnabled()) {
+            log.trace("CLIENT: " + command);
+        }
 
         if (command == null) {
-            System.out.println("CLIENT sent empty data, closing connection.");
+            log.info("CLIENT sent empty data, closing connection.");
             try {
                 cmdConnection.close();
             } catch (IOException ex) {
-                System.err.println("IOException: " + ex.getMessage());
+                log.error("IOException: " + ex.getMessage());
             }
             return;
         }
 
-        String[] splitCommand = command.split(" ");
-        switch (splitCommand[0].toUpperCase(Locale.ROOT)) { // FTP commands are case insensitive (RFC959 4.3 P45)
-            case "ACCT":
-                if (splitCommand.length == 1) {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                } else {
-                    ACCT(splitCommand[1]);
-                }
-                break;
-            case "XMKD": // Alias for MKD as of RFC1123 4.1.3.1 P35
-            case "MKD":
-                if (splitCommand.length == 1) {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                } else if (splitCommand.length == 2) {
-                    MKD(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    MKD(filename.toString());
-                }
-                break;
-            case "XRMD": // Alias for RMD as of RFC1123 4.1.3.1 P35
-            case "RMD":
-                if (splitCommand.length == 1) {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                } else if (splitCommand.length == 2) {
-                    RMD(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    RMD(filename.toString());
-                }
-                break;
-            case "XPWD": // Alias for PWD as of RFC1123 4.1.3.1 P35
-            case "PWD":
-                PWD();
-                break;
-            case "XCWD": // Alias for CWD as of RFC1123 4.1.3.1 P35
-            case "CWD":
-                if (splitCommand.length == 1) {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                } else if (splitCommand.length == 2) {
-                    CWD(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    CWD(filename.toString());
-                }
-                break;
-            case "XCUP": // Alias for CDUP as of RFC1123 4.1.3.1 P35
-            case "CDUP":
-                CDUP();
-                break;
-            case "DELE":
-                if (splitCommand.length == 1) {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                } else if (splitCommand.length == 2) {
-                    DELE(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    DELE(filename.toString());
-                }
-                break;
-            case "LIST":
-                if (splitCommand.length == 1) {
-                    LIST();
-                } else if (splitCommand.length == 2) {
-                    LIST(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    LIST(filename.toString());
-                }
-                break;
-            case "NLST":
-                if (splitCommand.length == 1) {
-                    NLST();
-                } else if(splitCommand.length == 2) {
-                    NLST(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    NLST(filename.toString());
-                }
-                break;
-            case "SYST":
-                SYST();
-                break;
-            case "PASV":
-                PASV();
-                break;
-            case "REST":
-                if (splitCommand.length != 1) {
-                    REST(Long.parseLong(splitCommand[1]));
-                } else {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                }
-                break;
-            case "PASS":
-                if (splitCommand.length == 2) {
-                    PASS(splitCommand[1]);
-                } else {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments
-                }
-                break;
-
-            // RFC2389
-            case "FEAT":
-                if (splitCommand.length <= 1) {
-                    FEAT();
-                } else {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                }
-                break;
-            case "OPTS":
-                // TODO Implement
-                sendReply(new FtpReply(502));
-                break;
-
-            // Minimum implementation
-            // RFC959 5.1 P43
-            case "USER":
-                if (splitCommand.length != 1) {
-                    USER(splitCommand[1]);
-                } else {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                }
-                break;
-            case "QUIT":
-                QUIT();
-                break;
-            case "PORT":
-                if (splitCommand.length != 1) {
-                    String[] octets = splitCommand[1].split(",");
-                    PORT(Integer.parseInt(octets[0]),
-                            Integer.parseInt(octets[1]),
-                            Integer.parseInt(octets[2]),
-                            Integer.parseInt(octets[3]),
-                            Integer.parseInt(octets[4]),
-                            Integer.parseInt(octets[5]));
-                } else {
-                    // No parameter
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                }
-                break;
-            case "TYPE":
-                if (splitCommand.length != 1) {
-                    switch (splitCommand[1]) {
-                        case "A":
-                            if (splitCommand.length == 3) {
-                                // Second parameter given
-                                // Unknown FormCode
-                                switch (splitCommand[2]) {
-                                    case "N" -> TYPE(TypeCode.ASCII, FormCode.NON_PRINT);
-                                    case "T" -> TYPE(TypeCode.ASCII, FormCode.TELNET_FORMAT_CONTROLS);
-                                    case "C" -> TYPE(TypeCode.ASCII, FormCode.CARRIAGE_CONTROL_ASA);
-                                    default -> sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                                }
-                            } else {
-                                // RFC959 4.1.2 P. 29
-                                // If the Format parameter is changed, and later just the first
-                                // argument is changed, Format then returns to the Non-print
-                                // default.
-                                TYPE(TypeCode.ASCII, FormCode.NON_PRINT);
-                            }
-                            break;
-                        case "E":
-                            if (splitCommand.length == 3) {
-                                // Second parameter given
-                                // Unknown FormCode
-                                switch (splitCommand[2]) {
-                                    case "N" -> TYPE(TypeCode.EBCDIC, FormCode.NON_PRINT);
-                                    case "T" -> TYPE(TypeCode.EBCDIC, FormCode.TELNET_FORMAT_CONTROLS);
-                                    case "C" -> TYPE(TypeCode.EBCDIC, FormCode.CARRIAGE_CONTROL_ASA);
-                                    default -> sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                                }
-                            } else {
-                                // RFC959 4.1.2 P. 29
-                                // If the Format parameter is changed, and later just the first
-                                // argument is changed, Format then returns to the Non-print
-                                // default.
-                                TYPE(TypeCode.EBCDIC, FormCode.NON_PRINT);
-                            }
-                            break;
-                        case "I":
-                            TYPE(TypeCode.IMAGE);
-                            break;
-                        case "L":
-                            if (splitCommand.length != 3) {
-                                sendReply(new FtpReply(501));  // Syntax error in parameters or arguments.
-                                return;
-                            }
-                            TYPE(TypeCode.LOCAL, Integer.parseInt(splitCommand[2]));
-                            break;
-                        default:
-                            sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                            return;
-                    }
-                } else {
-                    // No parameter
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                }
-                break;
-            case "MODE":
-                if (splitCommand.length != 1) {
-                    switch (splitCommand[1]) {
-                        case "S" -> MODE(TransmissionMode.STREAM);
-                        case "B" -> MODE(TransmissionMode.BLOCK);
-                        case "C" -> MODE(TransmissionMode.COMPRESSED);
-                        default -> {
-                            sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                            return;
-                        }
-                    }
-                } else {
-                    // No parameter
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                    return;
-                }
-                break;
-            case "STRU":
-                if (splitCommand.length != 1) {
-                    switch (splitCommand[1]) {
-                        case "F" -> STRU(DataStructure.FILE);
-                        case "R" -> STRU(DataStructure.RECORD);
-                        case "P" -> STRU(DataStructure.PAGE);
-                        default -> {
-                            sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                            return;
-                        }
-                    }
-                } else {
-                    // No parameter
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                }
-                break;
-            case "RETR":
-                if (splitCommand.length == 1) {
-                    // No parameter
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                } else if (splitCommand.length == 2) {
-                    RETR(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    RETR(filename.toString());
-                }
-                break;
-            case "STOR":
-                if (splitCommand.length == 1) {
-                    sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
-                } else if (splitCommand.length == 2) {
-                    STOR(splitCommand[1]);
-                } else {
-                    // pathname has spaces
-                    StringBuilder filename = new StringBuilder(splitCommand[1]);
-                    for (byte i = 2; i < splitCommand.length; ++i) {
-                        filename.append(" ").append(splitCommand[i]);
-                    }
-                    STOR(filename.toString());
-                }
-                break;
-            case "NOOP":
-                NOOP();
-                break;
-            default:
-                sendReply(new FtpReply(502)); // Command not implemented.
-                break;
-        }
+        CommandDispatcher.dispatch(this, command);
     }
 
     /**
      * Send FTP response to client.
      *
+     * Final replies are buffered until {@link #flushReplies()}, so replies to pipelined commands
+     * are sent together. Preliminary replies (1xx) are sent right away because a data transfer
+     * is about to start.
+     *
      * @param reply The FTP response to send.
      */
     protected void sendReply(@NotNull final FtpReply reply) {
-        if (reply.getCode() < 400) {
-            System.out.println("SERVER: " + reply.getCode() + " " + reply.getMessage());
-        } else {
-            System.err.println("SERVER: " + reply.getCode() + " " + reply.getMessage());
+        var level = reply.getCode() < 400 ? Logger.Level.TRACE : Logger.Level.DEBUG;
+        if (Logger.isEnabled(level)) {
+            log.log(level, "SERVER: " + reply.getCode() + " " + reply.getMessage());
+        }
+
+        try {
+            synchronized (replyLock) {
+                bw.write(reply);
+                if (reply.getCode() < 200) {
+                    bw.flush();
+                }
+            }
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Send a reply right away, for replies which don't answer the command currently processed.
+     * If the session is in the middle of a multi-line reply, the reply follows once that is complete.
+     */
+    protected void sendReplyNow(@NotNull final FtpReply reply) {
+        var level = reply.getCode() < 400 ? Logger.Level.TRACE : Logger.Level.DEBUG;
+        if (Logger.isEnabled(level)) {
+            log.log(level, "SERVER: " + reply.getCode() + " " + reply.getMessage());
         }
 
-        bw.write(String.format("%d %s\r\n", reply.getCode(), reply.getMessage()));
-        bw.flush();
+        try {
+            synchronized (replyLock) {
+                if (bw.writeAsync(reply)) {
+                    bw.flush();
+                }
+            }
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+        }
     }
 
+    /**
+     * Send a line of a multi-line reply. The line is sent together with the reply terminating it.
+     *
+     * @param line Line without CRLF
+     */
     protected void sendLine(@NotNull final String line) {
-        System.out.println("SERVER: " + line);
-        bw.println(line);
-        bw.flush();
+        if (Logger.isTraceEnabled()) {
+            log.trace("SERVER: " + line);
+        }
+        try {
+            synchronized (replyLock) {
+                bw.writeLine(line);
+            }
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Send all buffered replies. Called once no further commands are waiting.
+     */
+    protected void flushReplies() {
+        try {
+            synchronized (replyLock) {
+                bw.flush();
+            }
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+        }
     }
 
     //region RFC959 FILE TRANSFER PROTOCOL (FTP)
     //region Login
     public void USER(String username) {
-        if (username.isBlank()) {
+        var throttle = loginThrottle;
+        if (throttle != null && throttle.isBanned(cmdConnection.getInetAddress())) {
+            // Banned while connected
+            closeBanned();
+        } else if (username.isBlank()) {
             sendReply(new FtpReply(332)); // Need account for login.
         } else if (getAnonymousLogin() && username.equalsIgnoreCase("anonymous")) {
             setUsername(username);
             setAuthorised(true);
             sendReply(new FtpReply(230)); // User logged in, proceed.
-        } else if (users.containsKey(username)) {
+        } else {
+            // Unknown usernames fail with PASS only, so replies don't tell which users exist
             setUsername(username);
             sendReply(new FtpReply(331)); // User name okay, need password.
-        } else {
-            sendReply(new FtpReply(530)); // Not logged in.
         }
     }
     public void PASS(@NotNull final String password) {
-        if (getAnonymousLogin() && getUsername().equalsIgnoreCase("anonymous")) {
+        if (getUsername() == null) {
+            sendReply(new FtpReply(503)); // Bad sequence of commands.
+        } else if (getAnonymousLogin() && getUsername().equalsIgnoreCase("anonymous")) {
             setAuthorised(true);
             sendReply(new FtpReply(230)); // User logged in, proceed.
-        } else if (users.get(getUsername()).equals(password)) {
+        } else if (loginThrottle != null && loginThrottle.getDelay(cmdConnection.getInetAddress(), getUsername()) > 0) {
+            // Too many failures, the password isn't even checked
+            loginFailed(getKnownUsername(), true);
+        } else if (authenticator.authenticate(getUsername(), password)) {
+            var throttle = loginThrottle;
+            if (throttle != null) {
+                throttle.succeeded(getUsername());
+            }
             setAuthorised(true);
             sendReply(new FtpReply(230)); // User logged in, proceed.
+        } else {
+            loginFailed(getKnownUsername(), false);
+        }
+    }
+
+    /**
+     * @return Username to count a failed login for, null if it's unknown. Unknown usernames are
+     *         only counted for the address, they'd fill the counters otherwise.
+     */
+    private String getKnownUsername() {
+        return authenticator.isKnown(getUsername()) ? getUsername() : null;
+    }
+
+    /**
+     * Count a failed login and reply 530, or close the connection if the client is banned now.
+     *
+     * @param username null if the username is unknown
+     * @param refused The attempt was refused because of a delay
+     */
+    private void loginFailed(final String username, final boolean refused) {
+        var throttle = loginThrottle;
+        if (throttle != null && throttle.failed(cmdConnection.getInetAddress(), username, refused)) {
+            log.warn("Too many failed logins, banning " + cmdConnection.getInetAddress().getHostAddress());
+            closeBanned();
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
     }
+
+    private void closeBanned() {
+        sendReply(new FtpReply(421, "Too many failed logins.")); // Service not available, closing control connection.
+        flushReplies();
+        try {
+            cmdConnection.close();
+        } catch (IOException e) {
+            log.error("IOException: " + e.getMessage());
+        }
+    }
     public void ACCT(@NotNull final String accountInformation) {
         /*
           230 // User logged in, proceed.
@@ -505,8 +559,11 @@ public class FtpServer implements Runnable {
             500, 501, 502, 421, 530, 550
          */
         if (getAutorised()) {
-            setCurrentDirectoryPath(pathname);
-            sendReply(new FtpReply(250)); // Requested file action okay, completed.
+            if (paths.changeDirectory(pathname)) {
+                sendReply(new FtpReply(250)); // Requested file action okay, completed.
+            } else {
+                sendReply(new FtpReply(550)); // Requested action not taken.
+            }
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
@@ -536,10 +593,11 @@ public class FtpServer implements Runnable {
             500
          */
         sendReply(new FtpReply(221));
+        flushReplies();
         try {
             cmdConnection.close();
         } catch (IOException e) {
-            System.err.println("IOException: " + e.getMessage());
+            log.error("IOException: " + e.getMessage());
         }
     }
     //endregion
@@ -551,13 +609,17 @@ public class FtpServer implements Runnable {
         500, 501, 421, 530
          */
         if (getAutorised()) {
+            if (getExtendedPassiveOnly()) {
+                sendReply(new FtpReply(503, "Only EPSV allowed after EPSV ALL.")); // Bad sequence of commands.
+                return;
+            }
             try {
-                setClientAddress(InetAddress.getByName(String.format("%d.%d.%d.%d", h1, h2, h3, h4)));
+                setClientAddress(InetAddress.getByAddress(new byte[] { (byte) h1, (byte) h2, (byte) h3, (byte) h4 }));
                 setClientPort((p1 * 256) + p2);
                 setPassiveMode(false);
                 sendReply(new FtpReply(200)); // Command okay.
             } catch (UnknownHostException ex) {
-                System.err.println("UnknownHostException: " + ex.getMessage());
+                log.error("UnknownHostException: " + ex.getMessage());
             }
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
@@ -569,29 +631,54 @@ public class FtpServer implements Runnable {
             500, 501, 502, 421, 530
          */
         if (getAutorised()) {
-            try {
-                // Close existing connection
-                if (dataConnection != null) {
-                    dataConnection.close();
-                    dataConnection = null;
-                }
+            if (getExtendedPassiveOnly()) {
+                sendReply(new FtpReply(503, "Only EPSV allowed after EPSV ALL.")); // Bad sequence of commands.
+                return;
+            }
 
-                // Create new ServerSocket on random port
-                dataConnection = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
-                byte[] ip = dataConnection.getInetAddress().getAddress();
-                var p1 = dataConnection.getLocalPort() / 256;
-                var p2 = dataConnection.getLocalPort() % 256;
-                setPassiveMode(true);
-                // Format recommended by DJB
-                // https://cr.yp.to/ftp/retr.html
-                sendReply(new FtpReply(227, String.format("=%d,%d,%d,%d,%d,%d", ip[0], ip[1], ip[2], ip[3], p1, p2))); // Entering Passive Mode (h1,h2,h3,h4,p1,p2).
-            } catch (IOException ex) {
-                System.err.println("IOException: " + ex.getMessage());
+            // Clients behind NAT need the external address
+            var manager = passivePortManager;
+            var address = manager != null && manager.getAdvertisedAddress() != null ? manager.getAdvertisedAddress() : cmdConnection.getLocalAddress();
+            if (!(address instanceof Inet4Address)) {
+                sendReply(new FtpReply(425, "PASV requires IPv4, use EPSV.")); // Can't open data connection.
+                return;
+            }
+
+            var lease = leasePassiveListener();
+            if (lease == null) {
+                return;
             }
+
+            byte[] ip = address.getAddress();
+            var p1 = lease.getPort() / 256;
+            var p2 = lease.getPort() % 256;
+            // Format recommended by DJB
+            // https://cr.yp.to/ftp/retr.html
+            sendReply(new FtpReply(227, String.format("=%d,%d,%d,%d,%d,%d", ip[0] & 0xff, ip[1] & 0xff, ip[2] & 0xff, ip[3] & 0xff, p1, p2))); // Entering Passive Mode (h1,h2,h3,h4,p1,p2).
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
     }
+
+    /**
+     * Lease a listener for PASV and EPSV, replies 425 if none is available.
+     *
+     * @return null if no listener is available
+     */
+    private PassivePortManager.Lease leasePassiveListener() {
+        releasePassiveListener();
+
+        var manager = passivePortManager;
+        var lease = manager == null ? null : manager.acquire();
+        if (lease == null) {
+            sendReply(new FtpReply(425)); // Can't open data connection.
+            return null;
+        }
+
+        passiveListener = lease;
+        setPassiveMode(true);
+        return lease;
+    }
     public void MODE(final TransmissionMode mode) {
     /*
         200
@@ -663,6 +750,23 @@ public class FtpServer implements Runnable {
 
     //region File action commands
     public void ALLO() {}
+    /**
+     * REST with a restart marker recorded during the last upload in block mode, or the offset
+     * into the file.
+     */
+    public void REST(@NotNull final String marker) {
+        var position = restartMarkers.get(marker);
+        if (position != null) {
+            REST(position.longValue());
+            return;
+        }
+
+        try {
+            REST(Long.parseLong(marker));
+        } catch (NumberFormatException ex) {
+            sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
+    }
     public void REST(@NotNull final long marker) {
         /*
         500, 501, 502, 421, 530
@@ -671,30 +775,62 @@ public class FtpServer implements Runnable {
         if (getAutorised()) {
             try {
                 setStartPosition(marker);
+                setEndPosition(-1);
                 sendReply(new FtpReply(350)); // Requested file action pending further information.
-            } catch (NumberFormatException ex) {
+            } catch (IllegalArgumentException ex) {
                 sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
             }
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
     }
-    public void STOR(@NotNull final String pathname) {
+    /**
+     * RANG start-point end-point (draft-bryan-ftp-range), both inclusive. RANG 1 0 resets the range.
+     */
+    public void RANG(final long start, final long end) {
         /*
-            125, 150
-               (110)
-               226, 250
-               425, 426, 451, 551, 552
-            532, 450, 452, 553
-            500, 501, 421, 530
+        350
+        500, 501, 502, 421, 530
          */
-
         if (getAutorised()) {
-            var f = new File(pathname);
-            if (getPassiveMode()) {
-                STOR_PASSIVE(f);
+            if (start == 1 && end == 0) {
+                setStartPosition(0);
+                setEndPosition(-1);
+                sendReply(new FtpReply(350, "Restarting at 0. Ending byte at end of file.")); // Requested file action pending further information.
+            } else if (start >= 0 && end >= start) {
+                setStartPosition(start);
+                setEndPosition(end);
+                sendReply(new FtpReply(350, "Restarting at " + start + ". Ending byte at " + end + ".")); // Requested file action pending further information.
             } else {
-                STOR_ACTIVE(f);
+                sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            }
+        } else {
+            sendReply(new FtpReply(530)); // Not logged in.
+        }
+    }
+    public void STOR(@NotNull final String pathname) {
+        /*
+            125, 150
+               (110)
+               226, 250
+               425, 426, 451, 551, 552
+            532, 450, 452, 553
+            500, 501, 421, 530
+         */
+
+        if (getAutorised()) {
+            var path = resolve(pathname);
+            try {
+                if (getPassiveMode()) {
+                    STOR_PASSIVE(path, false);
+                } else {
+                    STOR_ACTIVE(path, false);
+                }
+            } finally {
+                // REST only applies to the transfer following it
+                setStartPosition(0);
+                setEndPosition(-1);
+                invalidateCaches(path);
             }
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
@@ -704,23 +840,21 @@ public class FtpServer implements Runnable {
     /**
      * STOR via active FTP
      *
-     * @param f File to store the data in
+     * @param path File to store the data in
+     * @param append Append to the file instead of writing at the restart marker
      */
-    protected void STOR_ACTIVE(@NotNull File f) {
+    protected void STOR_ACTIVE(@NotNull final String path, final boolean append) {
         sendReply(new FtpReply(150)); // File status okay; about to open data connection.
-        try (var s = new Socket(getClientAddress(), getClientPort(), new InetSocketAddress(0).getAddress(), 20);
-             var os = s.getInputStream();
-             var dis = new DataInputStream(new BufferedInputStream(os));
-             var fos = new FileOutputStream(f)) {
-
-            byte[] buffer = new byte[4096];
-            int count;
-            while ((count = dis.read(buffer, 0, buffer.length)) != -1) {
-                fos.write(buffer, 0, count);
-            }
+        try (var s = openActiveDataConnection();
+             var fc = openStoreChannel(path, append)) {
+
+            var count = receiveFile(s.getChannel(), fc, append ? fc.size() : getStartPosition());
             sendReply(new FtpReply(226)); // Closing data connection.
+            if (Logger.isDebugEnabled()) {
+                log.debug("Received " + count + " bytes into " + path + ", " + FileTransfer.getBufferPool());
+            }
         } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
+            log.error("IOException: " + ex.getMessage());
             // TODO Is this the correct error?
             sendReply(new FtpReply(451)); // Requested action aborted: local error in processing.
         }
@@ -729,29 +863,81 @@ public class FtpServer implements Runnable {
     /**
      * STOR via passive FTP
      *
-     * @param f File to store the data in
+     * @param path File to store the data in
+     * @param append Append to the file instead of writing at the restart marker
      */
-    protected void STOR_PASSIVE(@NotNull File f) {
+    protected void STOR_PASSIVE(@NotNull final String path, final boolean append) {
         sendReply(new FtpReply(150)); // File status okay; about to open data connection.
 
-        try (var s = dataConnection.accept();
-             var is = s.getInputStream();
-             var dis = new DataInputStream(new BufferedInputStream(is));
-             var fos = new FileOutputStream(f)) {
+        try (var s = acceptPassiveDataConnection();
+             var fc = openStoreChannel(path, append)) {
 
-            byte[] buffer = new byte[4096];
-            int count;
-            while ((count = dis.read(buffer, 0, buffer.length)) != -1) {
-                fos.write(buffer, 0, count);
-            }
+            var count = receiveFile(s.getChannel(), fc, append ? fc.size() : getStartPosition());
             sendReply(new FtpReply(226)); // Closing data connection.
+            if (Logger.isDebugEnabled()) {
+                log.debug("Received " + count + " bytes into " + path + ", " + FileTransfer.getBufferPool());
+            }
         } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
+            log.error("IOException: " + ex.getMessage());
             // TODO Is this the correct error?
             sendReply(new FtpReply(451)); // Requested action aborted: local error in processing.
         }
     }
 
+    /**
+     * Receive a file over the data connection, decoding the current transmission mode and
+     * converting the representation type.
+     *
+     * @return Number of bytes written to the file
+     */
+    protected long receiveFile(@NotNull final ReadableByteChannel connection, @NotNull final FileChannel fc, final long position)
+    throws IOException {
+        updateThrottles();
+        var source = uploadThrottle != null ? uploadThrottle.wrap(connection) : connection;
+        if (transmissionMode == TransmissionMode.BLOCK) {
+            restartMarkers.clear();
+            try (var decoder = new BlockMode.Decoder(source);
+                 var converter = convertData(decoder)) {
+                return BlockMode.receive(converter, decoder, fc, position, restartMarkerInterval, this::restartMarkerReached);
+            }
+        }
+
+        try (var decoder = decodeData(source);
+             var converter = convertData(decoder)) {
+            return FileTransfer.receive(converter, fc, position);
+        }
+    }
+
+    /**
+     * Everything before the marker has been written to the file, tell the client where to resume.
+     *
+     * @param marker Marker sent by the client, null for checkpoints of the server
+     */
+    private void restartMarkerReached(final String marker, final long position) {
+        var m = marker != null ? marker : Long.toString(position);
+        restartMarkers.put(m, position);
+        sendReply(new FtpReply(110, "MARK " + m + " = " + position)); // Restart marker reply.
+    }
+
+    /**
+     * Open a file for STOR or APPE.
+     *
+     * Without a restart marker STOR replaces the file. With a marker everything behind it is cut
+     * off, so the resumed upload doesn't leave stale data at the end of the file.
+     */
+    protected FileChannel openStoreChannel(@NotNull final String path, final boolean append) throws IOException {
+        var fc = vfs.openWrite(path);
+        try {
+            if (!append) {
+                fc.truncate(getStartPosition());
+            }
+        } catch (IOException ex) {
+            fc.close();
+            throw ex;
+        }
+        return fc;
+    }
+
     public void STOU() {}
     public void RETR(final String pathname) {
         /*
@@ -778,46 +964,219 @@ public class FtpServer implements Runnable {
             500, 501, 421, 530
          */
         if (getAutorised()) {
-            var f = new File(pathname);
-            if (getPassiveMode()) {
-                RETR_PASSIVE(f);
-            } else {
-                RETR_ACTIVE(f);
+            var path = resolve(pathname);
+            try {
+                if (getPassiveMode() && isSegmented()) {
+                    RETR_SEGMENT(path);
+                } else if (getPassiveMode()) {
+                    RETR_PASSIVE(path);
+                } else {
+                    RETR_ACTIVE(path);
+                }
+            } finally {
+                // REST only applies to the transfer following it
+                setStartPosition(0);
+                setEndPosition(-1);
             }
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
     }
 
-    protected void RETR_ACTIVE(@NotNull File f) {
+    protected void RETR_ACTIVE(@NotNull final String path) {
         sendReply(new FtpReply(150)); // File status okay; about to open data connection.
-        try (var s = new Socket(getClientAddress(), getClientPort(), new InetSocketAddress(0).getAddress(), 20);
-             var os = s.getOutputStream();
-             var bos = new BufferedOutputStream(os);
-             var fis = new FileInputStream(f)) {
-
-            bos.write(fis.readAllBytes());
+        try (var s = openActiveDataConnection();
+             var fc = vfs.openRead(path)) {
 
+            sendFile(fc, s.getChannel());
             sendReply(new FtpReply(226)); // Closing data connection.
         } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
+            log.error("IOException: " + ex.getMessage());
+            sendReply(new FtpReply(451)); // Requested action aborted: local error in processing.
         }
     }
 
-    protected void RETR_PASSIVE(@NotNull File f) {
+    protected void RETR_PASSIVE(@NotNull final String path) {
         sendReply(new FtpReply(150)); // File status okay; about to open data connection.
-        try (var s = dataConnection.accept();
-             var os = s.getOutputStream();
-             var dos = new DataOutputStream(new BufferedOutputStream(os));
-             var fis = new FileInputStream(f)) {
+        try (var s = acceptPassiveDataConnection();
+             var fc = vfs.openRead(path)) {
 
-            dos.write(fis.readAllBytes());
+            sendFile(fc, s.getChannel());
             sendReply(new FtpReply(226)); // Closing data connection.
         } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
+            log.error("IOException: " + ex.getMessage());
+            sendReply(new FtpReply(451)); // Requested action aborted: local error in processing.
+        }
+    }
+
+    /**
+     * Segments are sent in parallel to the commands following them. They are plain ranges of the
+     * file, so they are only supported for transfers which don't change the bytes.
+     */
+    protected boolean isSegmented() {
+        return getParallelSegments() > 1 && isParallelRetrievalEnabled()
+                && transmissionMode == TransmissionMode.STREAM && !isConversionRequired();
+    }
+
+    /**
+     * RETR of a segment (OPTS RETR PARALLEL) via passive FTP
+     *
+     * Replies 150 and returns, the segment is sent by the segment executor which replies 226 once
+     * it's complete. Replies 450 if the executor has no room for another segment.
+     */
+    protected void RETR_SEGMENT(@NotNull final String path) {
+        if (segments.getActiveSegments() >= getParallelSegments()) {
+            sendReply(new FtpReply(425, "Too many parallel segments.")); // Can't open data connection.
+            return;
+        }
+
+        var lease = passiveListener;
+        passiveListener = null;
+        if (lease == null) {
+            sendReply(new FtpReply(425, "No passive listener, PASV required.")); // Can't open data connection.
+            return;
+        }
+
+        SegmentedRetrieval.Segment segment;
+        try {
+            segment = segments.open(vfs, path, getStartPosition(), getTransferLength());
+        } catch (IOException ex) {
+            lease.release();
+            log.error("IOException: " + ex.getMessage());
+            sendReply(new FtpReply(550)); // Requested action not taken.
+            return;
+        }
+
+        updateThrottles();
+        var throttle = downloadThrottle;
+        Runnable transfer = () -> {
+            try {
+                var count = segments.transfer(segment, lease, cmdConnection.getInetAddress(), throttle);
+                if (Logger.isDebugEnabled()) {
+                    log.debug("Sent " + segment);
+                }
+                sendReplyNow(new FtpReply(226, "Segment complete, " + count + " bytes from " + segment.getStart() + ".")); // Closing data connection.
+            } catch (IOException ex) {
+                log.error("IOException: " + ex.getMessage());
+                sendReplyNow(new FtpReply(426)); // Connection closed; transfer aborted.
+            } finally {
+                segments.close(segment);
+            }
+        };
+
+        var executor = segmentExecutor;
+        // Holding the lock keeps the segment from replying before the 150
+        synchronized (replyLock) {
+            try {
+                if (executor != null) {
+                    executor.execute(transfer);
+                    sendReply(new FtpReply(150)); // File status okay; about to open data connection.
+                    return;
+                }
+            } catch (RejectedExecutionException ex) {
+                // All segment threads busy, the client may retry or fall back to a plain RETR
+            }
+        }
+        segments.close(segment);
+        lease.release();
+        sendReply(new FtpReply(450, "Too many segments on the server.")); // Requested file action not taken.
+    }
+
+    /**
+     * Send the file over the data connection.
+     *
+     * Starts at the restart marker set by REST or RANG and ends at the end of the range. In block mode restart markers with the offset into
+     * the file are inserted into the data. Uses zero-copy unless the bytes have to be converted
+     * for the current representation type or encoded for the current transmission mode. Throttled
+     * zero-copy transfers are only split into smaller chunks.
+     *
+     * @param fc File to send
+     * @param connection Data connection
+     */
+    protected void sendFile(@NotNull final FileChannel fc, @NotNull final WritableByteChannel connection)
+    throws IOException {
+        updateThrottles();
+        var target = downloadThrottle != null ? downloadThrottle.wrap(connection) : connection;
+        if (transmissionMode == TransmissionMode.BLOCK) {
+            // Markers count the bytes sent, they are offsets into the file only if nothing is converted
+            var markerInterval = isConversionRequired() ? 0 : restartMarkerInterval;
+            try (var encoder = new BlockMode.Encoder(target, getStartPosition(), markerInterval);
+                 var converter = convertData(encoder)) {
+                FileTransfer.copy(fc, getStartPosition(), getTransferLength(), converter);
+            }
+        } else if (transmissionMode != TransmissionMode.STREAM) {
+            try (var encoder = encodeData(target);
+                 var converter = convertData(encoder)) {
+                FileTransfer.copy(fc, getStartPosition(), getTransferLength(), converter);
+            }
+        } else if (isConversionRequired()) {
+            try (var converter = convertData(target)) {
+                FileTransfer.copy(fc, getStartPosition(), getTransferLength(), converter);
+            }
+        } else {
+            FileTransfer.send(fc, getStartPosition(), getTransferLength(), connection, downloadThrottle);
         }
     }
 
+    /**
+     * Wrap the data connection to encode the current transmission mode. Closing the returned channel
+     * ends the transfer (e.g. writes the EOF marker), in stream mode the data connection itself is
+     * returned.
+     */
+    protected WritableByteChannel encodeData(@NotNull final WritableByteChannel target) {
+        switch (transmissionMode) {
+            case BLOCK:
+                return new BlockMode.Encoder(target, 0, 0);
+            case COMPRESSED:
+                return new CompressedMode.Encoder(target, CompressedMode.getFiller(typeCode));
+            case DEFLATE:
+                return new DeflateMode.Encoder(target, getDeflateLevel());
+            default:
+                return target;
+        }
+    }
+
+    /**
+     * Wrap the data connection to decode the current transmission mode, in stream mode the data
+     * connection itself is returned.
+     */
+    protected ReadableByteChannel decodeData(@NotNull final ReadableByteChannel source) {
+        switch (transmissionMode) {
+            case BLOCK:
+                return new BlockMode.Decoder(source);
+            case COMPRESSED:
+                return new CompressedMode.Decoder(source, CompressedMode.getFiller(typeCode));
+            case DEFLATE:
+                return new DeflateMode.Decoder(source);
+            default:
+                return source;
+        }
+    }
+
+    /**
+     * Wrap the channel to convert the file to the network representation of the current type,
+     * returns the channel itself if nothing has to be converted.
+     */
+    protected WritableByteChannel convertData(@NotNull final WritableByteChannel target) {
+        return isConversionRequired() ? new TypeConversion.Encoder(target, typeCode) : target;
+    }
+
+    /**
+     * Wrap the channel to convert the network representation of the current type to the local
+     * format, returns the channel itself if nothing has to be converted.
+     */
+    protected ReadableByteChannel convertData(@NotNull final ReadableByteChannel source) {
+        return isConversionRequired() ? new TypeConversion.Decoder(source, typeCode) : source;
+    }
+
+    /**
+     * TYPE A transfers have to be converted unless the platform ends lines with CRLF as well,
+     * TYPE E transfers always.
+     */
+    protected boolean isConversionRequired() {
+        return TypeConversion.isRequired(typeCode);
+    }
+
     public void LIST() {
         /*
             125, 150 // 125 Data connection already open; transfer starting./150 File status okay; about to open data connection.
@@ -828,37 +1187,7 @@ public class FtpServer implements Runnable {
          */
 
         if (getAutorised()) {
-            if (getPassiveMode()) {
-                sendReply(new FtpReply(150));
-                try (var s = dataConnection.accept();
-                     var os = s.getOutputStream();
-                     var ps = new PrintWriter(new BufferedOutputStream(os))) {
-
-                    for (var f : getCurrentDirectoryFiles()) {
-                        ps.write(new EasyParsableListFormat(f).toString());
-                    }
-
-                    sendReply(new FtpReply(226)); // Closing data connection.
-                } catch (IOException ex) {
-                    System.err.println("IOException: " + ex.getMessage());
-                }
-            } else {
-                // Active mode
-                // Always open a new data connection
-                sendReply(new FtpReply(150)); // File status okay; about to open data connection.
-                try (var s = new Socket(getClientAddress(), getClientPort(), new InetSocketAddress(0).getAddress(), 20);
-                     var os = s.getOutputStream();
-                     var ps = new PrintWriter(new BufferedOutputStream(os))) {
-
-                    for (var f : getCurrentDirectoryFiles()) {
-                        ps.write(new EasyParsableListFormat(f).toString());
-                    }
-
-                    sendReply(new FtpReply(226)); // Closing data connection.
-                } catch (IOException ex) {
-                    System.err.println("IOException: " + ex.getMessage());
-                }
-            }
+            sendListing(resolve("."), DirectoryListing.Format.EPLF);
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
@@ -871,14 +1200,12 @@ public class FtpServer implements Runnable {
                 return;
             }
 
-            var dir = getCurrentDirectoryPath();
-            if (!pathname.equals("-a")) {
-                // Don't change directory if illegal parameter is present
+            if (pathname.equals("-a")) {
                 // Just list current directory instead
-                setCurrentDirectoryPath(pathname);
+                LIST();
+            } else {
+                sendListing(resolve(pathname), DirectoryListing.Format.EPLF);
             }
-            LIST();
-            setCurrentDirectoryPath(dir);
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
@@ -892,28 +1219,173 @@ public class FtpServer implements Runnable {
             500, 501, 502, 421, 530
          */
         if (getAutorised()) {
-            // Always open a new data connection
-            sendReply(new FtpReply(150)); // File status okay; about to open data connection.
-            try (var s = new Socket(getClientAddress(), getClientPort(), new InetSocketAddress(0).getAddress(), 20);
-                 var os = s.getOutputStream();
-                 var ps = new PrintWriter(new BufferedOutputStream(os))) {
-
-                for (var f : getCurrentDirectoryFiles()) {
-                    ps.write(new EasyParsableListFormat(f).getName() + "\r\n");
-                }
+            sendListing(resolve("."), DirectoryListing.Format.NAMES);
+        } else {
+            sendReply(new FtpReply(530)); // Not logged in.
+        }
+    }
+    public void NLST(@NotNull final String pathname) {
+        if (getAutorised()) {
+            sendListing(resolve(pathname), DirectoryListing.Format.NAMES);
+        } else {
+            sendReply(new FtpReply(530)); // Not logged in.
+        }
+    }
+
+    /**
+     * Drop the cached attributes of a file and the cached listing of its directory after the file has been changed.
+     */
+    protected void invalidateCaches(@NotNull final String path) {
+        var local = vfs.toLocalPath(path);
+        if (local == null) {
+            // Not cached, or behind a link out of the root the session couldn't have changed
+            return;
+        }
+
+        var cache = attributeCache;
+        if (cache != null) {
+            cache.invalidate(local);
+        }
+
+        var parent = local.getParent();
+        if (parent != null) {
+            DirectoryListing.invalidate(parent);
+        }
+    }
+
+    /**
+     * Attributes of a file, from the attribute cache if there is one.
+     */
+    protected BasicFileAttributes readAttributes(@NotNull final String path) throws IOException {
+        var cache = attributeCache;
+        var local = cache == null ? null : vfs.toLocalPath(path);
+        if (local == null) {
+            return vfs.stat(path, BasicFileAttributes.class);
+        }
+        return cache.get(local);
+    }
+
+    /**
+     * Stream the listing of a directory (or a single file) over a new data connection.
+     *
+     * @param path Directory or file to list
+     * @param format EPLF for LIST, names only for NLST
+     */
+    protected void sendListing(@NotNull final String path, @NotNull final DirectoryListing.Format format) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = vfs.stat(path, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            sendReply(new FtpReply(450)); // Requested file action not taken.
+            return;
+        }
 
-                sendReply(new FtpReply(226)); // Closing data connection.
+        sendReply(new FtpReply(150)); // File status okay; about to open data connection.
+        try (var s = openDataConnection()) {
+            try (var encoder = encodeData(s.getChannel())) {
+                DirectoryListing.write(vfs, path, attributes, format, encoder);
+            }
+            sendReply(new FtpReply(226)); // Closing data connection.
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+            sendReply(new FtpReply(451)); // Requested action aborted: local error in processing.
+        }
+    }
+
+    /**
+     * Append the data to the file with the name "pathname", create it if it doesn't exist.
+     * @param pathname Name of the file
+     */
+    public void APPE(@NotNull final String pathname) {
+        /*
+            125, 150
+               (110)
+               226, 250
+               425, 426, 451, 551, 552
+            532, 450, 550, 452, 553
+            500, 501, 502, 421, 530
+         */
+        if (getAutorised()) {
+            var path = resolve(pathname);
+            try {
+                if (getPassiveMode()) {
+                    STOR_PASSIVE(path, true);
+                } else {
+                    STOR_ACTIVE(path, true);
+                }
+            } finally {
+                setStartPosition(0);
+                setEndPosition(-1);
+                invalidateCaches(path);
+            }
+        } else {
+            sendReply(new FtpReply(530)); // Not logged in.
+        }
+    }
+    /**
+     * Select the file or directory to rename with RNTO.
+     * @param pathname Name of the file or directory
+     */
+    public void RNFR(@NotNull final String pathname) {
+        /*
+            450, 550
+            500, 501, 502, 421, 530
+            350
+         */
+        if (getAutorised()) {
+            var path = resolve(pathname);
+            try {
+                vfs.stat(path, BasicFileAttributes.class);
+                renameFrom = path;
+                sendReply(new FtpReply(350)); // Requested file action pending further information.
             } catch (IOException ex) {
-                System.err.println("IOException: " + ex.getMessage());
+                renameFrom = null;
+                sendReply(new FtpReply(550)); // Requested action not taken.
             }
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
         }
     }
-    public void NLST(@NotNull final String pathname) {}
-    public void APPE() {}
-    public void RNFR() {}
-    public void RNTO() {}
+
+    /**
+     * Rename the file or directory selected by RNFR.
+     * @param pathname New name
+     */
+    public void RNTO(@NotNull final String pathname) {
+        /*
+            250
+            532, 553
+            500, 501, 502, 503, 421, 530
+         */
+        if (!getAutorised()) {
+            sendReply(new FtpReply(530)); // Not logged in.
+            return;
+        }
+
+        var source = renameFrom;
+        renameFrom = null;
+        if (source == null) {
+            sendReply(new FtpReply(503)); // Bad sequence of commands.
+            return;
+        }
+
+        var target = resolve(pathname);
+        try {
+            vfs.rename(source, target);
+            paths.invalidate();
+            invalidateCaches(source);
+            invalidateCaches(target);
+            var local = vfs.toLocalPath(source);
+            if (local != null) {
+                DirectoryListing.invalidate(local);
+            }
+            sendReply(new FtpReply(250)); // Requested file action okay, completed.
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+            sendReply(new FtpReply(553)); // Requested action not taken.
+        }
+    }
+
     public void DELE(@NotNull final String pathname) {
         /*
             250
@@ -922,15 +1394,27 @@ public class FtpServer implements Runnable {
          */
 
         if (getAutorised()) {
-            var f = new File(pathname);
-            if (f.exists()) {
-                if (f.delete()) {
-                    sendReply(new FtpReply(250)); // Requested file action okay, completed.
-                } else {
-                    sendReply(new FtpReply(450)); // Requested file action not taken.
-                }
-            } else {
+            var path = resolve(pathname);
+            BasicFileAttributes attributes;
+            try {
+                attributes = vfs.stat(path, BasicFileAttributes.class);
+            } catch (IOException ex) {
                 sendReply(new FtpReply(550)); // Requested action not taken.
+                return;
+            }
+
+            try {
+                if (attributes.isDirectory()) {
+                    // Directories are removed with RMD
+                    sendReply(new FtpReply(550)); // Requested action not taken.
+                    return;
+                }
+                vfs.delete(path);
+                invalidateCaches(path);
+                sendReply(new FtpReply(250)); // Requested file action okay, completed.
+            } catch (IOException ex) {
+                log.error("IOException: " + ex.getMessage());
+                sendReply(new FtpReply(450)); // Requested file action not taken.
             }
         } else {
             sendReply(new FtpReply(530)); // Not logged in.
@@ -948,10 +1432,21 @@ public class FtpServer implements Runnable {
          */
 
         if (getAutorised()) {
-            var f = new File(pathname);
-            if (f.exists() && f.isDirectory() && f.delete()) {
+            var path = resolve(pathname);
+            try {
+                if (!vfs.stat(path, BasicFileAttributes.class).isDirectory()) {
+                    sendReply(new FtpReply(550)); // Requested action not taken.
+                    return;
+                }
+                vfs.delete(path);
+                paths.invalidate();
+                invalidateCaches(path);
+                var local = vfs.toLocalPath(path);
+                if (local != null) {
+                    DirectoryListing.invalidate(local);
+                }
                 sendReply(new FtpReply(250)); // Requested file action okay, completed.
-            } else {
+            } catch (IOException ex) {
                 sendReply(new FtpReply(550)); // Requested action not taken.
             }
         } else {
@@ -969,10 +1464,12 @@ public class FtpServer implements Runnable {
             500, 501, 502, 421, 530, 550
          */
         if (getAutorised()) {
-            var f = new File(getCurrentDirectoryPath(), pathname);
-            if (!f.exists() && f.mkdir()) {
+            var path = resolve(pathname);
+            try {
+                vfs.mkdir(path);
+                invalidateCaches(path);
                 sendReply(new FtpReply(257, "\"" + pathname + "\" created.")); // 257 "PATHNAME" created.
-            } else {
+            } catch (IOException ex) {
                 sendReply(new FtpReply(550)); // Requested action not taken.
             }
         } else {
@@ -1067,22 +1564,112 @@ public class FtpServer implements Runnable {
 
         // For FEAT codes see https://www.iana.org/assignments/ftp-commands-extensions/ftp-commands-extensions.xhtml
 
-        // TODO List all features
-        //sendLine("211-Features:");
-        //sendLine(" base");
-        //sendLine(" hist");
-        //sendLine(" SIZE");
+        sendLine("211-Features:");
+        sendLine(" EPRT");
+        sendLine(" EPSV");
+        sendLine(" MDTM");
+        sendLine(" MODE Z");
+        sendLine(" " + MachineListing.getFeature(getMlstFacts()));
+        sendLine(" RANG STREAM");
+        sendLine(" REST STREAM");
+        if (isParallelRetrievalEnabled()) {
+            sendLine(" RETR PARALLEL=" + maxParallelSegments);
+        }
+        sendLine(" SIZE");
 
-        // End of feature set or "No features"
-        //sendReply(new FtpReply(211)); // System status, or system help reply.
-        sendReply(new FtpReply(502)); // Command not implemented.);
+        // End of feature set
+        sendReply(new FtpReply(211, "End")); // System status, or system help reply.
     }
     public void OPTS(@NotNull final String commandName) {
-        sendReply(new FtpReply(502)); // Command not implemented.
+        if (commandName.equalsIgnoreCase("MLST")) {
+            // No facts at all
+            OPTS(commandName, "");
+        } else if (commandName.equalsIgnoreCase("RETR")) {
+            // Back to a single data connection
+            OPTS(commandName, "PARALLEL=1");
+        } else {
+            sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
     }
 
     public void OPTS(@NotNull final String commandName, @NotNull final String commandOptions) {
-        sendReply(new FtpReply(502)); // Command not implemented.
+        if (commandName.equalsIgnoreCase("MODE")) {
+            OPTS_MODE(commandOptions);
+        } else if (commandName.equalsIgnoreCase("RETR")) {
+            OPTS_RETR(commandOptions);
+        } else if (commandName.equalsIgnoreCase("MLST")) {
+            // Unsupported facts are ignored (RFC3659 7.9)
+            var facts = EnumSet.noneOf(MachineListing.Fact.class);
+            for (var name : commandOptions.split(";")) {
+                var fact = MachineListing.Fact.forName(name.trim());
+                if (fact != null) {
+                    facts.add(fact);
+                }
+            }
+            setMlstFacts(facts);
+            sendReply(new FtpReply(200, ("MLST OPTS " + MachineListing.toString(facts)).trim())); // Command okay.
+        } else {
+            sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+        }
+    }
+    //endregion
+
+    /**
+     * OPTS RETR PARALLEL=segments
+     *
+     * With more than one segment, every RETR in passive stream mode is sent in the background, so
+     * the client can set up the next range with PASV and RANG while it's running.
+     */
+    protected void OPTS_RETR(@NotNull final String commandOptions) {
+        var option = commandOptions.trim();
+        if (isParallelRetrievalEnabled() && option.regionMatches(true, 0, "PARALLEL=", 0, 9)) {
+            try {
+                var count = Integer.parseInt(option.substring(9));
+                if (count >= 1 && count <= maxParallelSegments) {
+                    setParallelSegments(count);
+                    sendReply(new FtpReply(200, "RETR OPTS PARALLEL=" + count)); // Command okay.
+                    return;
+                }
+            } catch (NumberFormatException ex) {
+                // Reply below
+            }
+        }
+        sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+    }
+
+    /**
+     * OPTS MODE Z LEVEL level (draft-preston-ftpext-deflate 4.)
+     */
+    protected void OPTS_MODE(@NotNull final String commandOptions) {
+        var modeBegin = CommandDispatcher.skipWhitespace(commandOptions, 0);
+        var modeEnd = CommandDispatcher.parameterEnd(commandOptions, modeBegin);
+        if (modeEnd - modeBegin != 1 || Character.toUpperCase(commandOptions.charAt(modeBegin)) != 'Z') {
+            sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
+            return;
+        }
+        var optionBegin = CommandDispatcher.skipWhitespace(commandOptions, modeEnd);
+        if (optionBegin == commandOptions.length()) {
+            sendReply(new FtpReply(200, "MODE Z LEVEL " + getDeflateLevel())); // Command okay.
+            return;
+        }
+
+        var optionEnd = CommandDispatcher.parameterEnd(commandOptions, optionBegin);
+        var levelBegin = CommandDispatcher.skipWhitespace(commandOptions, optionEnd);
+        var levelEnd = CommandDispatcher.parameterEnd(commandOptions, levelBegin);
+        if (optionEnd - optionBegin == 5 && commandOptions.regionMatches(true, optionBegin, "LEVEL", 0, 5)
+                && levelBegin < levelEnd && CommandDispatcher.skipWhitespace(commandOptions, levelEnd) == commandOptions.length()) {
+            try {
+                var level = Integer.parseInt(commandOptions, levelBegin, levelEnd, 10);
+                if (level >= 0 && level <= 9) {
+                    setDeflateLevel(level);
+                    sendReply(new FtpReply(200, "MODE Z LEVEL set to " + level)); // Command okay.
+                    return;
+                }
+            } catch (NumberFormatException ex) {
+                // Reply below
+            }
+        }
+        sendReply(new FtpReply(501)); // Syntax error in parameters or arguments.
     }
     //endregion
 
@@ -1106,9 +1693,66 @@ public class FtpServer implements Runnable {
     //endregion
 
     //region RFC2428 FTP Extensions for IPv6 and NATs (Proposed)
-    public void EPRT() {}
-    public void EPSV() {}
-    public void EPSV(String net_prt) {}
+    /**
+     * Extended PORT, works for IPv4 and IPv6.
+     *
+     * @param address Address of the client
+     * @param port Port of the client
+     */
+    public void EPRT(@NotNull final InetAddress address, final int port) {
+        /*
+            200
+            500, 501, 522, 421, 530
+         */
+        if (getAutorised()) {
+            if (getExtendedPassiveOnly()) {
+                sendReply(new FtpReply(503, "Only EPSV allowed after EPSV ALL.")); // Bad sequence of commands.
+                return;
+            }
+            setClientAddress(address);
+            setClientPort(port);
+            setPassiveMode(false);
+            sendReply(new FtpReply(200)); // Command okay.
+        } else {
+            sendReply(new FtpReply(530)); // Not logged in.
+        }
+    }
+
+    /**
+     * Extended PASV. The reply only contains the port, the client uses the address of the control connection.
+     */
+    public void EPSV() {
+        /*
+            229
+            500, 501, 502, 522, 421, 530
+         */
+        if (getAutorised()) {
+            var lease = leasePassiveListener();
+            if (lease != null) {
+                sendReply(new FtpReply(229, "Entering Extended Passive Mode (|||" + lease.getPort() + "|)"));
+            }
+        } else {
+            sendReply(new FtpReply(530)); // Not logged in.
+        }
+    }
+
+    /**
+     * @param net_prt Network protocol (1 = IPv4, 2 = IPv6) or "ALL"
+     */
+    public void EPSV(@NotNull final String net_prt) {
+        if (!getAutorised()) {
+            sendReply(new FtpReply(530)); // Not logged in.
+        } else if (net_prt.equalsIgnoreCase("ALL")) {
+            // From now on PORT, PASV and EPRT are refused
+            setExtendedPassiveOnly(true);
+            sendReply(new FtpReply(200, "EPSV ALL command successful.")); // Command okay.
+        } else if (net_prt.equals("1") || net_prt.equals("2")) {
+            // Passive listeners accept both protocols
+            EPSV();
+        } else {
+            sendReply(new FtpReply(522)); // Network protocol not supported, use (1,2)
+        }
+    }
     //endregion
 
     //region RFC2640 Internationalization of the File Transfer Protocol (Proposed)
@@ -1118,6 +1762,138 @@ public class FtpServer implements Runnable {
     //endregion
 
     //region RFC3659 Extensions to FTP (Proposed)
+    /**
+     * Last modification time of a file.
+     * @param pathname Name of the file
+     */
+    public void MDTM(@NotNull final String pathname) {
+        /*
+            213
+            500, 501, 550
+         */
+        if (!getAutorised()) {
+            sendReply(new FtpReply(530)); // Not logged in.
+            return;
+        }
+
+        try {
+            var attributes = readAttributes(resolve(pathname));
+            if (attributes.isRegularFile()) {
+                sendReply(new FtpReply(213, MachineListing.TIME_VAL.format(attributes.lastModifiedTime().toInstant()))); // File status.
+            } else {
+                sendReply(new FtpReply(550)); // Requested action not taken.
+            }
+        } catch (IOException ex) {
+            sendReply(new FtpReply(550)); // Requested action not taken.
+        }
+    }
+
+    /**
+     * Size of a file in bytes.
+     * @param pathname Name of the file
+     */
+    public void SIZE(@NotNull final String pathname) {
+        /*
+            213
+            500, 501, 550
+         */
+        if (!getAutorised()) {
+            sendReply(new FtpReply(530)); // Not logged in.
+            return;
+        }
+
+        try {
+            var attributes = readAttributes(resolve(pathname));
+            if (attributes.isRegularFile()) {
+                sendReply(new FtpReply(213, Long.toString(attributes.size()))); // File status.
+            } else {
+                sendReply(new FtpReply(550)); // Requested action not taken.
+            }
+        } catch (IOException ex) {
+            sendReply(new FtpReply(550)); // Requested action not taken.
+        }
+    }
+
+    public void MLST() {
+        MLST(".");
+    }
+
+    /**
+     * Facts about a single file or directory, sent over the control connection.
+     * @param pathname Name of the file or directory
+     */
+    public void MLST(@NotNull final String pathname) {
+        /*
+            2yz
+            500, 501, 502, 421, 530, 550
+         */
+        if (!getAutorised()) {
+            sendReply(new FtpReply(530)); // Not logged in.
+            return;
+        }
+
+        var path = resolve(pathname);
+        var parent = VirtualFileSystem.getParent(path);
+        var machineListing = new MachineListing(getMlstFacts(), vfs, parent == null ? path : parent);
+        try {
+            var attributes = vfs.stat(path, machineListing.getAttributesType());
+            var name = paths.resolve(pathname);
+            var buffer = ByteBuffer.allocate(machineListing.maxLength(name, attributes));
+            machineListing.encode(buffer, path, name, attributes);
+
+            sendLine("250-Listing " + pathname);
+            // The line already ends with CRLF
+            sendLine(" " + new String(buffer.array(), 0, buffer.position() - 2, ReplyWriter.CHARSET));
+            sendReply(new FtpReply(250, "End")); // Requested file action okay, completed.
+        } catch (IOException ex) {
+            sendReply(new FtpReply(550)); // Requested action not taken.
+        }
+    }
+
+    public void MLSD() {
+        MLSD(".");
+    }
+
+    /**
+     * Facts about the content of a directory, sent over the data connection.
+     * @param pathname Name of the directory
+     */
+    public void MLSD(@NotNull final String pathname) {
+        /*
+            125, 150
+               226, 250
+               425, 426, 451
+            500, 501, 502, 421, 530, 550
+         */
+        if (!getAutorised()) {
+            sendReply(new FtpReply(530)); // Not logged in.
+            return;
+        }
+
+        var path = resolve(pathname);
+        BasicFileAttributes attributes;
+        try {
+            attributes = vfs.stat(path, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            sendReply(new FtpReply(550)); // Requested action not taken.
+            return;
+        }
+        if (!attributes.isDirectory()) {
+            sendReply(new FtpReply(501, "Not a directory.")); // Syntax error in parameters or arguments.
+            return;
+        }
+
+        sendReply(new FtpReply(150)); // File status okay; about to open data connection.
+        try (var s = openDataConnection()) {
+            try (var encoder = encodeData(s.getChannel())) {
+                DirectoryListing.write(vfs, path, getMlstFacts(), encoder);
+            }
+            sendReply(new FtpReply(226)); // Closing data connection.
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+            sendReply(new FtpReply(451)); // Requested action aborted: local error in processing.
+        }
+    }
     //endregion
 
     //region RFC5797 FTP Command and Extension Registry (Proposed)
@@ -1127,8 +1903,7 @@ public class FtpServer implements Runnable {
     public void HOST(@NotNull final String hostname) {}
     //endregion
 
-    @Override
-    public void run() {
+    protected void greet() {
         /*
         Connection establishment:
                120 // Service ready in nnn minutes.
@@ -1137,14 +1912,27 @@ public class FtpServer implements Runnable {
                421 // Service not available, closing control connection.
          */
         sendReply(new FtpReply(220)); // Service ready for new user.
+    }
+
+    @Override
+    public void run() {
+        greet();
+        flushReplies();
         try {
             while (!cmdConnection.isClosed()) {
                 parseCommand(br.readLine());
+
+                // Pipelined commands are answered in one batch
+                if (!cmdConnection.isClosed() && !br.ready()) {
+                    flushReplies();
+                }
             }
 
-            System.out.println("Command connection closed");
+            log.info("Command connection closed");
         } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
+            log.error("IOException: " + ex.getMessage());
+        } finally {
+            closeDataConnections();
         }
     }
 }
\ No newline at end of file
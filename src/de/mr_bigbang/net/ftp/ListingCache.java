@@ -0,0 +1,245 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps encoded directory listings, keyed by the canonical path of the directory.
+ *
+ * The cache is bounded by the total size of the listings, the least recently used directory is
+ * evicted first. Every cached directory is watched with a {@link WatchService}, so changes made
+ * by other processes invalidate it as well as changes made through the server.
+ */
+class ListingCache implements Runnable {
+    /**
+     * Listings of one directory, one slot per {@link DirectoryListing.Format}.
+     */
+    private static final class Entry {
+        private final byte[][] listings = new byte[DirectoryListing.Format.values().length][];
+        private final long[] counts = new long[DirectoryListing.Format.values().length];
+        private WatchKey key;
+        private long size = 0;
+    }
+
+    /**
+     * A cached listing.
+     */
+    static final class Listing {
+        private final byte[] data;
+        public byte[] getData() { return data; }
+
+        private final long count;
+        /**
+         * @return Number of entries in the listing
+         */
+        public long getCount() { return count; }
+
+        private Listing(final byte[] data, final long count) {
+            this.data = data;
+            this.count = count;
+        }
+    }
+
+    private final long maxSize;
+    public long getMaxSize() { return maxSize; }
+
+    private final int maxListingSize;
+    /**
+     * @return Size of the largest listing which is cached, larger listings are always read from disk
+     */
+    public int getMaxListingSize() { return maxListingSize; }
+
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Guarded by this
+    private long size = 0; // Guarded by this
+    // Incremented by every invalidation, listings read before are not cached
+    private long generation = 0; // Guarded by this
+
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private final AtomicLong hits = new AtomicLong();
+    public long getHits() { return hits.get(); }
+
+    private final AtomicLong misses = new AtomicLong();
+    public long getMisses() { return misses.get(); }
+
+    private final AtomicLong evictions = new AtomicLong();
+    public long getEvictions() { return evictions.get(); }
+
+    private final AtomicLong invalidations = new AtomicLong();
+    public long getInvalidations() { return invalidations.get(); }
+
+    public synchronized long getSize() { return size; }
+    public synchronized int getDirectories() { return entries.size(); }
+
+    /**
+     * @param maxSize Total size of all cached listings in bytes
+     */
+    public ListingCache(final long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+
+        this.maxSize = maxSize;
+        // A single directory shouldn't be able to flush the whole cache
+        this.maxListingSize = (int) Math.min(maxSize / 4, Integer.MAX_VALUE - 8);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, "ftp-listing-watch");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param directory Canonical path of the directory
+     * @return null if the listing isn't cached
+     */
+    public synchronized Listing get(@NotNull final Path directory, @NotNull final DirectoryListing.Format format) {
+        var entry = entries.get(directory);
+        if (entry != null && entry.listings[format.ordinal()] != null) {
+            hits.incrementAndGet();
+            return new Listing(entry.listings[format.ordinal()], entry.counts[format.ordinal()]);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Start watching a directory before it is read.
+     *
+     * @param directory Canonical path of the directory
+     * @return Generation to pass to {@link #put}, -1 if the directory can't be watched and mustn't be cached
+     */
+    public synchronized long prepare(@NotNull final Path directory) {
+        var entry = entries.get(directory);
+        if (entry == null) {
+            WatchKey key;
+            try {
+                key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException | ClosedWatchServiceException ex) {
+                // Other file system or out of inotify watches
+                return -1;
+            }
+            entry = new Entry();
+            entry.key = key;
+            entries.put(directory, entry);
+        }
+        return generation;
+    }
+
+    /**
+     * Cache a listing read after {@link #prepare}. It is dropped if the directory (or any other
+     * directory) has been invalidated meanwhile.
+     */
+    public synchronized void put(@NotNull final Path directory, @NotNull final DirectoryListing.Format format,
+                                 final long generation, final byte[] data, final long count) {
+        var entry = entries.get(directory);
+        if (entry == null) {
+            return;
+        }
+        if (generation != this.generation || data.length > maxListingSize) {
+            discard(directory);
+            return;
+        }
+
+        var old = entry.listings[format.ordinal()];
+        var delta = data.length - (old == null ? 0 : old.length);
+        entry.listings[format.ordinal()] = data;
+        entry.counts[format.ordinal()] = count;
+        entry.size += delta;
+        size += delta;
+
+        // Least recently used first
+        var iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            var eldest = iterator.next();
+            if (eldest.getValue() == entry) {
+                continue;
+            }
+            iterator.remove();
+            eldest.getValue().key.cancel();
+            size -= eldest.getValue().size;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop watching a directory prepared for a listing that isn't cached after all (e.g. too large).
+     */
+    public synchronized void discard(@NotNull final Path directory) {
+        var entry = entries.get(directory);
+        if (entry != null && entry.size == 0) {
+            remove(directory);
+        }
+    }
+
+    /**
+     * Drop the listings of a directory after it has been changed.
+     *
+     * @param directory Canonical path of the directory
+     */
+    public synchronized void invalidate(@NotNull final Path directory) {
+        ++generation;
+        if (remove(directory)) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private boolean remove(@NotNull final Path directory) {
+        var entry = entries.remove(directory);
+        if (entry == null) {
+            return false;
+        }
+        entry.key.cancel();
+        size -= entry.size;
+        return true;
+    }
+
+    public synchronized void clear() {
+        ++generation;
+        for (var entry : entries.values()) {
+            entry.key.cancel();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            Logger.SERVER.error("IOException: " + ex.getMessage());
+        }
+        clear();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                var key = watchService.take();
+                // Any event (including OVERFLOW) makes the whole listing stale
+                key.pollEvents();
+                invalidate((Path) key.watchable());
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Cache closed
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ListingCache[maxSize=%d, size=%d, directories=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d]",
+                getMaxSize(), getSize(), getDirectories(), getHits(), getMisses(), getEvictions(), getInvalidations());
+    }
+}
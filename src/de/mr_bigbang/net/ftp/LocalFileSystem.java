@@ -0,0 +1,251 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Files below a directory of the default file system. With the file system root as root, virtual
+ * paths are the local paths.
+ */
+final class LocalFileSystem implements VirtualFileSystem {
+    private final Path root;
+    public Path getRoot() { return root; }
+
+    private final boolean posix;
+
+    /**
+     * Virtual paths are the absolute local paths.
+     */
+    LocalFileSystem() {
+        this(Path.of(System.getProperty("user.dir")).toAbsolutePath().getRoot());
+    }
+
+    LocalFileSystem(@NotNull final Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        this.posix = this.root.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * @return null if the path contains characters the default file system doesn't allow, e.g. NUL
+     */
+    @Override
+    public Path toLocalPath(@NotNull final String path) {
+        try {
+            return resolve(path);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @throws NoSuchFileException if the path contains characters the default file system doesn't allow
+     */
+    private Path resolve(@NotNull final String path) throws NoSuchFileException {
+        return resolve(root, path);
+    }
+
+    /**
+     * @param root Local path of the virtual root
+     * @throws NoSuchFileException if the path contains characters the default file system doesn't allow
+     */
+    static Path resolve(@NotNull final Path root, @NotNull final String path) throws NoSuchFileException {
+        try {
+            return path.length() <= 1 ? root : root.resolve(path.substring(1));
+        } catch (InvalidPathException ex) {
+            // Such a file can't exist
+            throw new NoSuchFileException(path, null, ex.getReason());
+        }
+    }
+
+    @Override
+    public String toRealPath(@NotNull final String path) throws IOException {
+        var virtual = toVirtualPath(root.toRealPath(), toRealPath(resolve(path)));
+        if (virtual == null) {
+            throw new AccessDeniedException(path);
+        }
+        return virtual;
+    }
+
+    /**
+     * @return Real path of the file, or of the deepest existing directory above it followed by the
+     *         rest of the path
+     * @throws AccessDeniedException if the file is a link to nowhere, writing it would create its target
+     */
+    static Path toRealPath(@NotNull final Path path) throws IOException {
+        var existing = path;
+        while (existing != null && !Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+        }
+        if (existing == null) {
+            return path;
+        }
+        try {
+            return existing.toRealPath().resolve(existing.relativize(path));
+        } catch (NoSuchFileException ex) {
+            throw new AccessDeniedException(path.toString(), null, "Dangling link");
+        }
+    }
+
+    /**
+     * @return Virtual path of a local path, null if it isn't below the root
+     */
+    String toVirtualPath(@NotNull final Path path) {
+        return toVirtualPath(root, path);
+    }
+
+    /**
+     * @param root Local path of the virtual root
+     * @return Virtual path of a local path, null if it isn't below the root
+     */
+    static String toVirtualPath(@NotNull final Path root, @NotNull final Path path) {
+        var p = path.toAbsolutePath().normalize();
+        if (!p.startsWith(root)) {
+            return null;
+        }
+        var sb = new StringBuilder();
+        for (var segment : root.relativize(p)) {
+            if (!segment.toString().isEmpty()) {
+                sb.append('/').append(segment);
+            }
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    /**
+     * @return Working directory of the server if it is below the root, the root otherwise
+     */
+    @Override
+    public String getDefaultDirectory() {
+        var directory = toVirtualPath(Path.of(System.getProperty("user.dir")));
+        return directory == null ? "/" : directory;
+    }
+
+    @Override
+    public boolean isPosix() {
+        return posix;
+    }
+
+    @Override
+    public FileChannel openRead(@NotNull final String path) throws IOException {
+        return FileChannel.open(resolve(path), StandardOpenOption.READ);
+    }
+
+    @Override
+    public FileChannel openWrite(@NotNull final String path) throws IOException {
+        return FileChannel.open(resolve(path), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    @Override
+    public BasicFileAttributes stat(@NotNull final String path, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        Class<? extends BasicFileAttributes> attributes = posix ? type : BasicFileAttributes.class;
+        return Files.readAttributes(resolve(path), attributes);
+    }
+
+    @Override
+    public DirectoryStream<Entry> list(@NotNull final String directory, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        return list(resolve(directory), posix ? type : BasicFileAttributes.class, null);
+    }
+
+    /**
+     * Stream the entries of a local directory.
+     *
+     * @param filter Entries to include, null for all
+     */
+    static DirectoryStream<Entry> list(@NotNull final Path directory, @NotNull final Class<? extends BasicFileAttributes> type,
+                                       final DirectoryStream.Filter<Entry> filter)
+    throws IOException {
+        var stream = Files.newDirectoryStream(directory);
+        return new DirectoryStream<>() {
+            @Override
+            public Iterator<Entry> iterator() {
+                var paths = stream.iterator();
+                return new Iterator<>() {
+                    private Entry next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && paths.hasNext()) {
+                            var p = paths.next();
+                            try {
+                                var entry = new Entry(p.getFileName().toString(), Files.readAttributes(p, type));
+                                if (filter == null || filter.accept(entry)) {
+                                    next = entry;
+                                }
+                            } catch (IOException ex) {
+                                // Deleted since it was listed
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Entry next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        var entry = next;
+                        next = null;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    @Override
+    public void mkdir(@NotNull final String path) throws IOException {
+        Files.createDirectory(resolve(path));
+    }
+
+    @Override
+    public void delete(@NotNull final String path) throws IOException {
+        Files.delete(resolve(path));
+    }
+
+    @Override
+    public void rename(@NotNull final String source, @NotNull final String target) throws IOException {
+        Files.move(resolve(source), resolve(target));
+    }
+
+    @Override
+    public boolean isAccessible(@NotNull final String path, @NotNull final AccessMode mode) {
+        var p = toLocalPath(path);
+        if (p == null) {
+            return false;
+        }
+        switch (mode) {
+            case READ:
+                return Files.isReadable(p);
+            case WRITE:
+                return Files.isWritable(p);
+            default:
+                return Files.isExecutable(p);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LocalFileSystem{root=%s}", root);
+    }
+}
@@ -0,0 +1,92 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Level gated logging with per-session context.
+ *
+ * Records are written asynchronously by a {@link RingBufferAppender}. Check the level with
+ * {@link #isEnabled(Level)} (or isTraceEnabled() etc.) before building messages on hot paths, so
+ * disabled levels cost a single comparison.
+ */
+class Logger {
+    enum Level {
+        TRACE("TRACE"), // Protocol tracing: every command and reply
+        DEBUG("DEBUG"),
+        INFO("INFO "),
+        WARN("WARN "),
+        ERROR("ERROR");
+
+        private final String label;
+        public String getLabel() { return label; }
+
+        Level(final String label) {
+            this.label = label;
+        }
+    }
+
+    private static volatile Level level = Level.INFO;
+    public static Level getLevel() { return level; }
+    public static void setLevel(@NotNull final Level level) { Logger.level = level; }
+
+    private static final RingBufferAppender APPENDER = new RingBufferAppender(8192, System.out, System.err);
+    private static final AtomicLong SESSION_IDS = new AtomicLong();
+
+    /**
+     * Logger without session context.
+     */
+    static final Logger SERVER = new Logger();
+
+    private final long sessionId;
+    private final SocketAddress remoteAddress;
+    private String context;
+
+    private Logger() {
+        this.sessionId = 0;
+        this.remoteAddress = null;
+        this.context = null;
+    }
+
+    private Logger(final long sessionId, final SocketAddress remoteAddress) {
+        this.sessionId = sessionId;
+        this.remoteAddress = remoteAddress;
+        setUser(null);
+    }
+
+    /**
+     * @param remoteAddress Address of the client
+     * @return Logger for a new session
+     */
+    static Logger forSession(final SocketAddress remoteAddress) {
+        return new Logger(SESSION_IDS.incrementAndGet(), remoteAddress);
+    }
+
+    /**
+     * Add the user to the context of all following records.
+     */
+    public void setUser(final String user) {
+        // Rebuilt only on login instead of for every record
+        context = String.format("[session=%d user=%s remote=%s]", sessionId, user == null ? "-" : user, remoteAddress);
+    }
+
+    public static boolean isEnabled(@NotNull final Level level) {
+        return level.compareTo(Logger.level) >= 0;
+    }
+    public static boolean isTraceEnabled() { return isEnabled(Level.TRACE); }
+    public static boolean isDebugEnabled() { return isEnabled(Level.DEBUG); }
+
+    public void log(@NotNull final Level level, @NotNull final String message) {
+        if (isEnabled(level)) {
+            APPENDER.append(level, context, message);
+        }
+    }
+
+    public void trace(@NotNull final String message) { log(Level.TRACE, message); }
+    public void debug(@NotNull final String message) { log(Level.DEBUG, message); }
+    public void info(@NotNull final String message) { log(Level.INFO, message); }
+    public void warn(@NotNull final String message) { log(Level.WARN, message); }
+    public void error(@NotNull final String message) { log(Level.ERROR, message); }
+}
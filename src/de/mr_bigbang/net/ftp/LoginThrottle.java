@@ -0,0 +1,185 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Slows down password guessing, shared by all sessions.
+ *
+ * Failed logins are counted per client address and per username. Counts decay with a half-life,
+ * so occasional typos are forgotten. After a few free attempts every failure adds a delay, doubling
+ * up to a maximum, in which further attempts are refused without checking the password. The
+ * session thread isn't held for the delay. Addresses failing too often are banned for a while,
+ * their connections are closed as soon as they are accepted.
+ *
+ * The counters live in {@link ConcurrentHashMap}s and are updated atomically per key, sessions
+ * of different clients don't contend with each other.
+ */
+final class LoginThrottle {
+    private static final class Record {
+        private final double failures; // At the time of updated
+        private final long updated;
+        private final long delayedUntil;
+        private final long bannedUntil;
+
+        private Record(final double failures, final long updated, final long delayedUntil, final long bannedUntil) {
+            this.failures = failures;
+            this.updated = updated;
+            this.delayedUntil = delayedUntil;
+            this.bannedUntil = bannedUntil;
+        }
+    }
+
+    // Removing decayed records every so many failures keeps the maps small
+    private static final int SWEEP_INTERVAL = 1024;
+    // Records with fewer failures and no delay or ban are dropped
+    private static final double FORGOTTEN = 0.5;
+
+    private final int freeAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final long halfLife;
+    private final int banThreshold;
+    private final long banDuration;
+
+    private final ConcurrentHashMap<InetAddress, Record> addresses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Record> usernames = new ConcurrentHashMap<>();
+    private final AtomicInteger updates = new AtomicInteger();
+
+    private final AtomicLong failures = new AtomicLong();
+    public long getFailures() { return failures.get(); }
+
+    private final AtomicLong refusals = new AtomicLong();
+    /**
+     * @return Attempts refused during a delay
+     */
+    public long getRefusals() { return refusals.get(); }
+
+    private final AtomicLong bans = new AtomicLong();
+    public long getBans() { return bans.get(); }
+
+    /**
+     * @param freeAttempts Failures without delay
+     * @param baseDelay Milliseconds of delay after the first failure beyond the free attempts
+     * @param maxDelay Longest delay in milliseconds
+     * @param halfLife Milliseconds until a failure counts half
+     * @param banThreshold Failures of an address which ban it, 0 to never ban
+     * @param banDuration Milliseconds an address is banned
+     */
+    LoginThrottle(final int freeAttempts, final long baseDelay, final long maxDelay, final long halfLife,
+                  final int banThreshold, final long banDuration) {
+        if (freeAttempts < 0 || baseDelay <= 0 || maxDelay < baseDelay || halfLife <= 0 || banThreshold < 0 || banDuration < 0) {
+            throw new IllegalArgumentException("Invalid login throttle parameters");
+        }
+
+        this.freeAttempts = freeAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.halfLife = halfLife;
+        this.banThreshold = banThreshold;
+        this.banDuration = banDuration;
+    }
+
+    /**
+     * @return true if connections from the address are to be closed right away
+     */
+    boolean isBanned(@NotNull final InetAddress address) {
+        var record = addresses.get(address);
+        return record != null && record.bannedUntil - System.nanoTime() > 0;
+    }
+
+    /**
+     * @return Milliseconds until the next login attempt is checked, 0 if it may be checked now
+     */
+    long getDelay(@NotNull final InetAddress address, final String username) {
+        var now = System.nanoTime();
+        var delay = remaining(addresses.get(address), now);
+        if (username != null) {
+            delay = Math.max(delay, remaining(usernames.get(username), now));
+        }
+        return delay;
+    }
+
+    private static long remaining(final Record record, final long now) {
+        return record == null ? 0 : Math.max(0, (record.delayedUntil - now) / 1_000_000);
+    }
+
+    /**
+     * Count a failed or refused login attempt.
+     *
+     * @param username null if the attempt didn't get as far as a username
+     * @param refused The attempt was made during a delay, the password hasn't been checked
+     * @return true if the address has been banned
+     */
+    boolean failed(@NotNull final InetAddress address, final String username, final boolean refused) {
+        (refused ? refusals : failures).incrementAndGet();
+        var now = System.nanoTime();
+        var record = addresses.compute(address, (key, r) -> fail(r, now, true));
+        if (username != null) {
+            usernames.compute(username, (key, r) -> fail(r, now, false));
+        }
+
+        if (updates.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep(now);
+        }
+        return record.bannedUntil - now > 0;
+    }
+
+    /**
+     * Forget the failures of the username after a successful login. The failures of the address
+     * are kept, logging in to one account doesn't allow guessing others.
+     */
+    void succeeded(@NotNull final String username) {
+        usernames.remove(username);
+    }
+
+    private Record fail(final Record record, final long now, final boolean bannable) {
+        var count = decay(record, now) + 1;
+        var delayedUntil = record == null ? now : record.delayedUntil;
+        var bannedUntil = record == null ? now : record.bannedUntil;
+
+        var excess = count - freeAttempts;
+        if (excess > 0) {
+            // Doubles with every failure, the shift is capped to stay clear of overflows
+            var delay = Math.min(maxDelay, baseDelay << Math.min(30, (int) Math.ceil(excess) - 1));
+            delayedUntil = Math.max(delayedUntil, now + delay * 1_000_000L);
+        }
+        if (bannable && banThreshold > 0 && Math.round(count) >= banThreshold && bannedUntil - now <= 0) {
+            bannedUntil = now + banDuration * 1_000_000L;
+            bans.incrementAndGet();
+            // Start over once the ban ends
+            count = 0;
+        }
+        return new Record(count, now, delayedUntil, bannedUntil);
+    }
+
+    /**
+     * @return Failures of the record, decayed to now
+     */
+    private double decay(final Record record, final long now) {
+        if (record == null) {
+            return 0;
+        }
+        var elapsed = (now - record.updated) / 1_000_000.0;
+        return record.failures * Math.pow(0.5, elapsed / halfLife);
+    }
+
+    private void sweep(final long now) {
+        addresses.entrySet().removeIf(e -> isForgotten(e.getValue(), now));
+        usernames.entrySet().removeIf(e -> isForgotten(e.getValue(), now));
+    }
+
+    private boolean isForgotten(@NotNull final Record record, final long now) {
+        return decay(record, now) < FORGOTTEN && record.delayedUntil - now <= 0 && record.bannedUntil - now <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoginThrottle[addresses=%d, usernames=%d, failures=%d, refusals=%d, bans=%d]",
+                addresses.size(), usernames.size(), getFailures(), getRefusals(), getBans());
+    }
+}
@@ -0,0 +1,328 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.file.AccessMode;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Writes the facts of MLSD and MLST lines (RFC3659 7).
+ *
+ * Only the facts selected by the client are computed. Everything except perm comes from a single
+ * attribute read, {@link PosixFileAttributes} are read only if a UNIX.* fact is selected.
+ * An instance belongs to one listing and must not be shared between threads.
+ */
+/*
+type=file;size=20000000;modify=20261017155959;unique=fe00.262493; big.bin\r\n
+type=dir;modify=20261017155959;unique=fe00.262628; dir\r\n
+*/
+final class MachineListing {
+    enum Fact {
+        TYPE("type"),
+        SIZE("size"),
+        MODIFY("modify"),
+        PERM("perm"),
+        UNIQUE("unique"),
+        UNIX_MODE("UNIX.mode"),
+        UNIX_OWNER("UNIX.owner"),
+        UNIX_GROUP("UNIX.group");
+
+        private final String name;
+        public String getName() { return name; }
+
+        Fact(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return null if the fact isn't supported
+         */
+        static Fact forName(@NotNull final String name) {
+            for (var fact : values()) {
+                if (fact.name.equalsIgnoreCase(name)) {
+                    return fact;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * time-val (RFC3659 2.3) without fractions of a second
+     */
+    static final DateTimeFormatter TIME_VAL = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+
+    /**
+     * Facts sent until the client selects others with OPTS MLST
+     */
+    static final Set<Fact> DEFAULT_FACTS = Collections.unmodifiableSet(EnumSet.of(Fact.TYPE, Fact.SIZE, Fact.MODIFY, Fact.UNIQUE));
+
+    // "fact=" and ";" of all facts with fixed size values (type=OS.unix=special, 19 digits, 14 digits, 10 letters, 4 digits)
+    private static final int MAX_FIXED_FACTS_LENGTH = (5 + 15 + 1) + (5 + 19 + 1) + (7 + 14 + 1) + (5 + 10 + 1)
+            + (7 + EplfEncoder.MAX_IDENTIFIER_LENGTH + 1) + (10 + 4 + 1) + (11 + 1) + (11 + 1) + 1;
+
+    private final Set<Fact> facts;
+    private final VirtualFileSystem fileSystem;
+    private final boolean posix;
+    private final boolean directoryWritable;
+    private final EplfEncoder encoder = new EplfEncoder();
+    private final byte[] digits = new byte[14];
+
+    /**
+     * @param facts Facts to write
+     * @param fileSystem File system of the listed entries
+     * @param directory Directory containing the listed entries, used for the perm fact
+     */
+    MachineListing(@NotNull final Set<Fact> facts, @NotNull final VirtualFileSystem fileSystem, @NotNull final String directory) {
+        this.facts = facts;
+        this.fileSystem = fileSystem;
+        this.posix = requiresPosix(facts) && fileSystem.isPosix();
+        this.directoryWritable = facts.contains(Fact.PERM) && fileSystem.isAccessible(directory, AccessMode.WRITE);
+    }
+
+    private static boolean requiresPosix(@NotNull final Set<Fact> facts) {
+        return facts.contains(Fact.UNIX_MODE) || facts.contains(Fact.UNIX_OWNER) || facts.contains(Fact.UNIX_GROUP);
+    }
+
+    /**
+     * @return Attributes to read for each entry
+     */
+    Class<? extends BasicFileAttributes> getAttributesType() {
+        return posix ? PosixFileAttributes.class : BasicFileAttributes.class;
+    }
+
+    /**
+     * @return Feature line for FEAT, selected facts are marked with "*"
+     */
+    static String getFeature(@NotNull final Set<Fact> selected) {
+        var sb = new StringBuilder("MLST ");
+        for (var fact : Fact.values()) {
+            sb.append(fact.getName());
+            if (selected.contains(fact)) {
+                sb.append('*');
+            }
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Facts as sent in the reply to OPTS MLST, e.g. "type;size;"
+     */
+    static String toString(@NotNull final Set<Fact> facts) {
+        var sb = new StringBuilder();
+        for (var fact : facts) {
+            sb.append(fact.getName()).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Upper bound of the bytes needed by {@link #encode}
+     */
+    int maxLength(@NotNull final String name, @NotNull final BasicFileAttributes attributes) {
+        var length = MAX_FIXED_FACTS_LENGTH + EplfEncoder.maxNameLength(name);
+        if (attributes instanceof PosixFileAttributes) {
+            var posixAttributes = (PosixFileAttributes) attributes;
+            length += EplfEncoder.maxNameLength(posixAttributes.owner().getName());
+            length += EplfEncoder.maxNameLength(posixAttributes.group().getName());
+        }
+        return length;
+    }
+
+    /**
+     * Write the selected facts, a space and the name followed by CRLF. The caller has to make sure
+     * there's room for {@link #maxLength} bytes.
+     *
+     * @param path Virtual path of the entry, used for the perm fact
+     */
+    void encode(@NotNull final ByteBuffer target, @NotNull final String path, @NotNull final String name,
+                @NotNull final BasicFileAttributes attributes) {
+        for (var fact : facts) {
+            var start = target.position();
+            putAscii(target, fact.getName());
+            target.put((byte) '=');
+            if (putValue(target, fact, path, attributes)) {
+                target.put((byte) ';');
+            } else {
+                // Fact doesn't apply to this entry
+                target.position(start);
+            }
+        }
+        target.put((byte) ' ');
+        encoder.encodeName(target, name);
+    }
+
+    /**
+     * @return false if the fact doesn't apply to the entry and nothing has been written
+     */
+    private boolean putValue(@NotNull final ByteBuffer target, @NotNull final Fact fact, @NotNull final String path,
+                             @NotNull final BasicFileAttributes attributes) {
+        switch (fact) {
+            case TYPE:
+                if (attributes.isRegularFile()) {
+                    putAscii(target, "file");
+                } else if (attributes.isDirectory()) {
+                    putAscii(target, "dir");
+                } else if (attributes.isSymbolicLink()) {
+                    putAscii(target, "OS.unix=slink");
+                } else {
+                    putAscii(target, "OS.unix=special");
+                }
+                return true;
+            case SIZE:
+                if (attributes.isDirectory()) {
+                    return false;
+                }
+                encoder.putLong(target, attributes.size());
+                return true;
+            case MODIFY:
+                putTimestamp(target, attributes.lastModifiedTime().toMillis());
+                return true;
+            case PERM:
+                putPermissions(target, path, attributes);
+                return true;
+            case UNIQUE:
+                var key = attributes.fileKey();
+                return key != null && EplfEncoder.putFileKey(target, key.toString());
+            case UNIX_MODE:
+                if (!(attributes instanceof PosixFileAttributes)) {
+                    return false;
+                }
+                putMode(target, ((PosixFileAttributes) attributes).permissions());
+                return true;
+            case UNIX_OWNER:
+                if (!(attributes instanceof PosixFileAttributes)) {
+                    return false;
+                }
+                putName(target, ((PosixFileAttributes) attributes).owner().getName());
+                return true;
+            case UNIX_GROUP:
+                if (!(attributes instanceof PosixFileAttributes)) {
+                    return false;
+                }
+                putName(target, ((PosixFileAttributes) attributes).group().getName());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * RFC3659 7.5.5, checked with the access rights of the server process
+     */
+    private void putPermissions(@NotNull final ByteBuffer target, @NotNull final String path, @NotNull final BasicFileAttributes attributes) {
+        if (attributes.isDirectory()) {
+            var readable = fileSystem.isAccessible(path, AccessMode.READ);
+            var writable = fileSystem.isAccessible(path, AccessMode.WRITE);
+            if (writable) {
+                target.put((byte) 'c');
+            }
+            if (directoryWritable) {
+                target.put((byte) 'd').put((byte) 'f');
+            }
+            if (fileSystem.isAccessible(path, AccessMode.EXECUTE)) {
+                target.put((byte) 'e');
+            }
+            if (readable) {
+                target.put((byte) 'l');
+            }
+            if (writable) {
+                target.put((byte) 'm').put((byte) 'p');
+            }
+        } else {
+            var writable = fileSystem.isAccessible(path, AccessMode.WRITE);
+            if (writable) {
+                target.put((byte) 'a');
+            }
+            if (directoryWritable) {
+                target.put((byte) 'd').put((byte) 'f');
+            }
+            if (fileSystem.isAccessible(path, AccessMode.READ)) {
+                target.put((byte) 'r');
+            }
+            if (writable) {
+                target.put((byte) 'w');
+            }
+        }
+    }
+
+    private static void putMode(@NotNull final ByteBuffer target, @NotNull final Set<PosixFilePermission> permissions) {
+        var mode = 0;
+        for (var permission : permissions) {
+            // OWNER_READ is the highest bit, OTHERS_EXECUTE the lowest
+            mode |= 1 << (8 - permission.ordinal());
+        }
+        target.put((byte) '0')
+                .put((byte) ('0' + ((mode >> 6) & 7)))
+                .put((byte) ('0' + ((mode >> 3) & 7)))
+                .put((byte) ('0' + (mode & 7)));
+    }
+
+    /**
+     * Owner and group names may contain anything but the fact separators.
+     */
+    private void putName(@NotNull final ByteBuffer target, @NotNull final String name) {
+        var start = target.position();
+        encoder.encodeName(target, name);
+        // Drop the CRLF
+        target.position(target.position() - 2);
+        for (var i = start; i < target.position(); ++i) {
+            var b = target.get(i);
+            if (b == ';' || b == '=' || b == ' ') {
+                target.put(i, (byte) '_');
+            }
+        }
+    }
+
+    /**
+     * Write a time-val (RFC3659 2.3) as YYYYMMDDHHMMSS in UTC.
+     */
+    private void putTimestamp(@NotNull final ByteBuffer target, final long milliseconds) {
+        var seconds = Math.floorDiv(milliseconds, 1000L);
+        var days = Math.floorDiv(seconds, 86400L);
+        var secondOfDay = (int) Math.floorMod(seconds, 86400L);
+
+        // Civil date from days since 1970-01-01, see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        var z = days + 719468;
+        var era = Math.floorDiv(z, 146097L);
+        var dayOfEra = z - era * 146097;
+        var yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        var dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        var mp = (5 * dayOfYear + 2) / 153;
+        var day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        var month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        // Four digits only
+        var year = (int) Math.max(0, Math.min(9999, yearOfEra + era * 400 + (month <= 2 ? 1 : 0)));
+
+        putDigits(0, 4, year);
+        putDigits(4, 2, month);
+        putDigits(6, 2, day);
+        putDigits(8, 2, secondOfDay / 3600);
+        putDigits(10, 2, secondOfDay / 60 % 60);
+        putDigits(12, 2, secondOfDay % 60);
+        target.put(digits, 0, 14);
+    }
+
+    private void putDigits(final int offset, final int length, final int value) {
+        var v = value;
+        for (var i = offset + length - 1; i >= offset; --i) {
+            digits[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+    }
+
+    private static void putAscii(@NotNull final ByteBuffer target, @NotNull final String s) {
+        for (var i = 0; i < s.length(); ++i) {
+            target.put((byte) s.charAt(i));
+        }
+    }
+}
@@ -1,27 +1,299 @@
 package de.mr_bigbang.net.ftp;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main {
+    enum Engine {
+        BLOCKING, // One thread per session
+        SELECTOR, // Sessions multiplexed by SelectorEngine
+    }
+
+    enum Storage {
+        LOCAL, // Default file system, see LocalFileSystem
+        MEMORY, // Heap, lost when the server stops
+        SHARDED, // Files spread over the shard mounts
+    }
+
+    private static final String CONFIG_FILE = "ftpserver.properties"; // Unless given on the command line
+
+    // Runs the segments of parallel RETRs, null if they are disabled
+    private static volatile ThreadPoolExecutor segmentExecutor;
+    // Config the users were read with, the users are kept if a reload fails to read them
+    private static volatile ServerConfig authenticatorConfig;
 
     public static void main(String[] args) {
         /*
         If you see: `IOException: Eine bestehende Verbindung wurde softwaregesteuert durch den Hostcomputer abgebrochen`
         in passive mode you might wanna check your Firewall to allow access to high ports
          */
-        try (var ss = new ServerSocket(21)) {
-            System.out.printf("Awaiting connections on %s...%n", ss.getLocalSocketAddress());
+        var log = Logger.SERVER;
+        var configPath = Path.of(args.length > 0 ? args[0] : CONFIG_FILE);
+        var config = ServerConfig.DEFAULTS;
+        if (Files.exists(configPath)) {
+            try {
+                config = ServerConfig.load(configPath);
+            } catch (IOException ex) {
+                log.error("IOException: " + ex.getMessage());
+                return;
+            }
+        } else {
+            log.warn("No config file " + configPath.toAbsolutePath() + ", using defaults");
+        }
+        ServerConfig.set(config);
 
-            while (!ss.isClosed()) {
-                var s = ss.accept();
-                System.out.printf("Connection from %s accepted!%n", s.getRemoteSocketAddress());
+        var executor = new SessionExecutor(config.getThreadType(), config.getMaxSessions());
+        apply(null, config);
+        FtpServer.setFileSystem(newFileSystem(config));
+        SelectorEngine engine = null;
+        PassivePortManager passivePortManager = null;
+        ListingCache listingCache = null;
+        AttributeCache attributeCache = null;
+        ConfigWatcher configWatcher = null;
+        try (var ss = ServerSocketChannel.open()) {
+            if (config.getListingCacheSize() > 0) {
+                listingCache = new ListingCache(config.getListingCacheSize());
+                DirectoryListing.setCache(listingCache);
+            }
+            if (config.getAttributeCacheSize() > 0) {
+                attributeCache = new AttributeCache(config.getAttributeCacheSize(), config.getAttributeCacheTtl());
+                FtpServer.setAttributeCache(attributeCache);
+            }
+            passivePortManager = new PassivePortManager(
+                    config.getPassiveBindAddress() == null ? null : InetAddress.getByName(config.getPassiveBindAddress()),
+                    config.getPassiveAdvertisedAddress() == null ? null : InetAddress.getByName(config.getPassiveAdvertisedAddress()),
+                    config.getPassivePortMin(), config.getPassivePortMax(), config.getPassiveTimeout());
+            FtpServer.setPassivePortManager(passivePortManager);
+            configWatcher = new ConfigWatcher(configPath, Main::apply);
 
-                var ftp = new Thread(new FtpServer(s));
-                ftp.start();
+            ss.bind(new InetSocketAddress(config.getPort()));
+            if (config.getEngine() == Engine.SELECTOR) {
+                engine = new SelectorEngine(executor, config.getEventLoops());
+                engine.start();
             }
+            log.info(String.format("Awaiting connections on %s (%s engine, %s threads, max. %d sessions)...",
+                    ss.getLocalAddress(), config.getEngine(), executor.getThreadType(), executor.getMaxSessions()));
+            log.info("Serving files from " + FtpServer.getFileSystem());
+
+            while (ss.isOpen()) {
+                var sc = ss.accept();
+                var s = sc.socket();
+                var loginThrottle = FtpServer.getLoginThrottle();
+                if (loginThrottle != null && loginThrottle.isBanned(s.getInetAddress())) {
+                    // Not worth a session, not even a reply
+                    if (Logger.isDebugEnabled()) {
+                        log.debug("Connection from banned " + s.getRemoteSocketAddress() + " closed");
+                    }
+                    try {
+                        sc.close();
+                    } catch (IOException ex) {
+                        log.error("IOException: " + ex.getMessage());
+                    }
+                    continue;
+                }
+                if (Logger.isDebugEnabled()) {
+                    log.debug("Connection from " + s.getRemoteSocketAddress() + " accepted!");
+                }
+
+                if (engine == null) {
+                    if (!executor.execute(() -> new FtpServer(s).run())) {
+                        reject(s);
+                    }
+                } else if (executor.tryAcquireSession()) {
+                    try {
+                        engine.register(sc);
+                    } catch (IOException ex) {
+                        // Only this connection is lost, keep accepting others
+                        executor.releaseSession();
+                        log.error("IOException: " + ex.getMessage());
+                        try {
+                            sc.close();
+                        } catch (IOException e) {
+                            log.error("IOException: " + e.getMessage());
+                        }
+                    }
+                } else {
+                    reject(s);
+                }
+            }
+        } catch (IOException ex) {
+            log.error("IOException: " + ex.getMessage());
+        } finally {
+            if (configWatcher != null) {
+                configWatcher.close();
+            }
+            if (engine != null) {
+                engine.shutdown();
+            }
+            executor.shutdown();
+            if (segmentExecutor != null) {
+                segmentExecutor.shutdown();
+            }
+            if (passivePortManager != null) {
+                log.info(passivePortManager.toString());
+                passivePortManager.close();
+            }
+            if (listingCache != null) {
+                log.info(listingCache.toString());
+                listingCache.close();
+            }
+            if (attributeCache != null) {
+                log.info(attributeCache.toString());
+                attributeCache.close();
+            }
+            var loginThrottle = FtpServer.getLoginThrottle();
+            if (loginThrottle != null) {
+                log.info(loginThrottle.toString());
+            }
+        }
+    }
+
+    /**
+     * Pass the settings which can change while the server is running on to it. Sessions pick them
+     * up with their next login or transfer. Parts whose settings didn't change are kept, e.g. the
+     * failure counts of the login throttle.
+     *
+     * All parts are built before any of them is replaced, so a config which is rejected leaves the
+     * server as it was.
+     *
+     * @param previous Config applied before, null at startup
+     * @throws IllegalArgumentException If a part rejects its settings
+     */
+    private static void apply(final ServerConfig previous, @NotNull final ServerConfig config) {
+        var bufferPool = previous == null || config.getBufferSize() != previous.getBufferSize()
+                || config.getBufferPoolCapacity() != previous.getBufferPoolCapacity()
+                ? new BufferPool(config.getBufferSize(), config.getBufferPoolCapacity()) : null;
+        var authenticator = authenticatorConfig == null || !config.hasSameAuthenticator(authenticatorConfig)
+                ? newAuthenticator(config, previous) : null;
+        var loginThrottleChanged = previous == null || !config.hasSameLoginThrottle(previous);
+        var loginThrottle = !loginThrottleChanged || !config.getLoginThrottle() ? null : new LoginThrottle(
+                config.getLoginFreeAttempts(), config.getLoginBaseDelay(), config.getLoginMaxDelay(),
+                config.getLoginFailureHalfLife(), config.getLoginBanThreshold(), config.getLoginBanDuration());
+        var ratesChanged = previous == null || !config.hasSameRates(previous);
+        var bandwidthLimits = !ratesChanged || !config.hasRates() ? null : new BandwidthLimits(
+                config.getGlobalDownloadRate(), config.getGlobalUploadRate(),
+                config.getUserDownloadRate(), config.getUserUploadRate(),
+                config.getSessionDownloadRate(), config.getSessionUploadRate());
+        var parallelSegmentsChanged = previous == null || config.getMaxParallelSegments() != previous.getMaxParallelSegments();
+
+        Logger.setLevel(config.getLogLevel());
+        if (bufferPool != null) {
+            FileTransfer.setBufferPool(bufferPool);
+        }
+        FtpServer.setRestartMarkerInterval(config.getRestartMarkerInterval());
+        if (parallelSegmentsChanged) {
+            // Segments already running finish on the old executor
+            var old = segmentExecutor;
+            segmentExecutor = newSegmentExecutor(config.getMaxParallelSegments());
+            FtpServer.setParallelRetrieval(segmentExecutor, config.getMaxParallelSegments());
+            if (old != null) {
+                old.shutdown();
+            }
+        }
+        FtpServer.setUserRoots(config.getUserRoots(), config.getDefaultRoot());
+        if (authenticator != null) {
+            FtpServer.setAuthenticator(authenticator);
+            authenticatorConfig = config;
+        }
+        if (loginThrottleChanged) {
+            FtpServer.setLoginThrottle(loginThrottle);
+        }
+        if (ratesChanged) {
+            FtpServer.setBandwidthLimits(bandwidthLimits);
+        }
+    }
+
+    /**
+     * Segments get threads of their own. In the session pool they could queue up behind the
+     * sessions waiting for them. Segments beyond the threads and the queue are rejected, so the
+     * sessions reply 450 instead of piling up work.
+     *
+     * @param maxSegments Segments a session may retrieve at the same time, also the number of
+     *                    threads and of queued segments
+     * @return null if parallel segments are disabled
+     */
+    private static ThreadPoolExecutor newSegmentExecutor(final int maxSegments) {
+        if (maxSegments <= 1) {
+            return null;
+        }
+
+        var count = new AtomicInteger();
+        var pool = new ThreadPoolExecutor(maxSegments, maxSegments, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxSegments),
+                r -> new Thread(r, "ftp-segment-" + count.incrementAndGet()));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Read the users from the password file. Without one only anonymous logins are possible at
+     * startup. On a reload the users are kept, the file may just be in the middle of being saved.
+     *
+     * @param previous Config applied before, null at startup
+     * @return null if the current authenticator is to be kept
+     */
+    private static Authenticator newAuthenticator(@NotNull final ServerConfig config, final ServerConfig previous) {
+        var path = Path.of(config.getPasswordFile());
+        Authenticator authenticator;
+        try {
+            authenticator = new PasswordFile(path);
+        } catch (NoSuchFileException ex) {
+            if (previous != null) {
+                Logger.SERVER.error("No password file " + path.toAbsolutePath() + ", users not reloaded");
+                return null;
+            }
+            Logger.SERVER.warn("No password file " + path.toAbsolutePath() + ", anonymous logins only");
+            return Authenticator.NONE;
+        } catch (IOException ex) {
+            Logger.SERVER.error("IOException: " + ex.getMessage());
+            return previous != null ? null : Authenticator.NONE;
+        }
+        Logger.SERVER.info("Users from " + authenticator);
+        var cacheSize = config.getCredentialCacheSize();
+        return cacheSize > 0 ? new CredentialCache(authenticator, cacheSize, config.getCredentialCacheTtl()) : authenticator;
+    }
+
+    private static VirtualFileSystem newFileSystem(@NotNull final ServerConfig config) {
+        switch (config.getStorage()) {
+            case MEMORY:
+                return new MemoryFileSystem();
+            case SHARDED:
+                var mounts = new ArrayList<Path>();
+                for (var mount : config.getShardMounts()) {
+                    mounts.add(Path.of(mount));
+                }
+                return new ShardedFileSystem(mounts);
+            default:
+                return new LocalFileSystem();
+        }
+    }
+
+    /**
+     * Turn away a client because the server is at its session limit.
+     *
+     * @param s Connection of the client
+     */
+    private static void reject(final Socket s) {
+        var reply = new FtpReply(421); // Service not available, closing control connection.
+        Logger.SERVER.warn("Too many sessions, rejecting " + s.getRemoteSocketAddress());
+        try (s) {
+            var os = s.getOutputStream();
+            os.write(reply.getBytes());
+            os.flush();
         } catch (IOException ex) {
-            System.err.println("IOException: " + ex.getMessage());
+            Logger.SERVER.error("IOException: " + ex.getMessage());
         }
     }
 }
@@ -0,0 +1,511 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps all files on the heap, e.g. to measure the server without disk I/O. The content is lost
+ * when the server stops.
+ */
+final class MemoryFileSystem implements VirtualFileSystem {
+    // Largest array the VM can allocate
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private final AtomicLong ids = new AtomicLong();
+    private final Node root = new Node(ids.incrementAndGet(), true);
+
+    /**
+     * File or directory. The tree is guarded by the file system, the content of a file by the node.
+     */
+    private static final class Node {
+        private final long id;
+        private final boolean directory;
+        private final TreeMap<String, Node> children;
+        private final FileTime created;
+        private volatile FileTime modified;
+        private byte[] data = new byte[0];
+        private int size = 0;
+        private final ArrayList<MemoryFileLock> locks = new ArrayList<>(0);
+
+        Node(final long id, final boolean directory) {
+            this.id = id;
+            this.directory = directory;
+            this.children = directory ? new TreeMap<>() : null;
+            this.created = FileTime.fromMillis(System.currentTimeMillis());
+            this.modified = created;
+        }
+
+        synchronized MemoryAttributes getAttributes() {
+            return new MemoryAttributes(this, size);
+        }
+    }
+
+    private static final class MemoryAttributes implements BasicFileAttributes {
+        private final Node node;
+        private final FileTime modified;
+        private final long size;
+
+        MemoryAttributes(@NotNull final Node node, final long size) {
+            this.node = node;
+            this.modified = node.modified;
+            this.size = size;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() { return modified; }
+
+        @Override
+        public FileTime lastAccessTime() { return modified; }
+
+        @Override
+        public FileTime creationTime() { return node.created; }
+
+        @Override
+        public boolean isRegularFile() { return !node.directory; }
+
+        @Override
+        public boolean isDirectory() { return node.directory; }
+
+        @Override
+        public boolean isSymbolicLink() { return false; }
+
+        @Override
+        public boolean isOther() { return false; }
+
+        @Override
+        public long size() { return size; }
+
+        @Override
+        public Object fileKey() { return node.id; }
+    }
+
+    //region Tree
+    private synchronized Node find(@NotNull final String path) throws IOException {
+        var node = root;
+        var start = 1;
+        while (start < path.length()) {
+            var end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            if (!node.directory) {
+                throw new NotDirectoryException(path);
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                throw new NoSuchFileException(path);
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private Node findParent(@NotNull final String path) throws IOException {
+        var parent = VirtualFileSystem.getParent(path);
+        if (parent == null) {
+            throw new FileSystemException(path, null, "Root directory");
+        }
+        var node = find(parent);
+        if (!node.directory) {
+            throw new NotDirectoryException(parent);
+        }
+        return node;
+    }
+
+    private synchronized Node create(@NotNull final String path, final boolean directory) throws IOException {
+        var parent = findParent(path);
+        var name = VirtualFileSystem.getName(path);
+        if (parent.children.containsKey(name)) {
+            throw new FileAlreadyExistsException(path);
+        }
+        var node = new Node(ids.incrementAndGet(), directory);
+        parent.children.put(name, node);
+        parent.modified = node.created;
+        return node;
+    }
+    //endregion
+
+    @Override
+    public FileChannel openRead(@NotNull final String path) throws IOException {
+        var node = find(path);
+        if (node.directory) {
+            throw new FileSystemException(path, null, "Is a directory");
+        }
+        return new MemoryFileChannel(node, false);
+    }
+
+    @Override
+    public synchronized FileChannel openWrite(@NotNull final String path) throws IOException {
+        var parent = findParent(path);
+        var node = parent.children.get(VirtualFileSystem.getName(path));
+        if (node == null) {
+            node = create(path, false);
+        } else if (node.directory) {
+            throw new FileSystemException(path, null, "Is a directory");
+        }
+        return new MemoryFileChannel(node, true);
+    }
+
+    @Override
+    public BasicFileAttributes stat(@NotNull final String path, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        return find(path).getAttributes();
+    }
+
+    @Override
+    public DirectoryStream<Entry> list(@NotNull final String directory, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        var entries = new ArrayList<Entry>();
+        synchronized (this) {
+            var node = find(directory);
+            if (!node.directory) {
+                throw new NotDirectoryException(directory);
+            }
+            for (var child : node.children.entrySet()) {
+                entries.add(new Entry(child.getKey(), child.getValue().getAttributes()));
+            }
+        }
+        return new DirectoryStream<>() {
+            @Override
+            public Iterator<Entry> iterator() {
+                return entries.iterator();
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+    @Override
+    public void mkdir(@NotNull final String path) throws IOException {
+        create(path, true);
+    }
+
+    @Override
+    public synchronized void delete(@NotNull final String path) throws IOException {
+        var parent = findParent(path);
+        var name = VirtualFileSystem.getName(path);
+        var node = parent.children.get(name);
+        if (node == null) {
+            throw new NoSuchFileException(path);
+        }
+        if (node.directory && !node.children.isEmpty()) {
+            throw new DirectoryNotEmptyException(path);
+        }
+        parent.children.remove(name);
+        parent.modified = FileTime.fromMillis(System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized void rename(@NotNull final String source, @NotNull final String target) throws IOException {
+        if (target.startsWith(source + "/")) {
+            throw new FileSystemException(source, target, "Target is inside the source");
+        }
+        var from = findParent(source);
+        var node = find(source);
+        var to = findParent(target);
+        var name = VirtualFileSystem.getName(target);
+        if (to.children.containsKey(name)) {
+            throw new FileAlreadyExistsException(target);
+        }
+        from.children.remove(VirtualFileSystem.getName(source));
+        to.children.put(name, node);
+        from.modified = to.modified = FileTime.fromMillis(System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean isAccessible(@NotNull final String path, @NotNull final AccessMode mode) {
+        try {
+            var node = find(path);
+            return mode != AccessMode.EXECUTE || node.directory;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemoryFileSystem{files=%d}", ids.get());
+    }
+
+    /**
+     * Lock on a range of a file. Like locks of local files within one VM, ranges of a file can't
+     * be locked twice, further attempts fail with an {@link OverlappingFileLockException}.
+     */
+    private static final class MemoryFileLock extends FileLock {
+        private final Node node;
+        private boolean valid = true; // Guarded by node
+
+        MemoryFileLock(@NotNull final MemoryFileChannel channel, final long position, final long size, final boolean shared) {
+            super(channel, position, size, shared);
+            this.node = channel.node;
+        }
+
+        @Override
+        public boolean isValid() {
+            synchronized (node) {
+                return valid;
+            }
+        }
+
+        @Override
+        public void release() {
+            synchronized (node) {
+                valid = false;
+                node.locks.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Channel to the content of a file. Reads and writes are positional, transfers copy the bytes
+     * into a pooled buffer while holding the node, so they never see a write half done.
+     */
+    private static final class MemoryFileChannel extends FileChannel {
+        private final Node node;
+        private final boolean writable;
+        private long position = 0;
+        private boolean modified = false;
+
+        MemoryFileChannel(@NotNull final Node node, final boolean writable) {
+            this.node = node;
+            this.writable = writable;
+        }
+
+        @Override
+        public int read(@NotNull final ByteBuffer dst) throws IOException {
+            var count = read(dst, position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long read(@NotNull final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            var total = 0L;
+            for (var i = offset; i < offset + length; ++i) {
+                var count = read(dsts[i]);
+                if (count == -1) {
+                    return total == 0 ? -1 : total;
+                }
+                total += count;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public int read(@NotNull final ByteBuffer dst, final long position) throws IOException {
+            ensureOpen();
+            synchronized (node) {
+                if (position >= node.size) {
+                    return -1;
+                }
+                var n = (int) Math.min(dst.remaining(), node.size - position);
+                dst.put(node.data, (int) position, n);
+                return n;
+            }
+        }
+
+        @Override
+        public int write(@NotNull final ByteBuffer src) throws IOException {
+            var count = write(src, position);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long write(@NotNull final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            var total = 0L;
+            for (var i = offset; i < offset + length; ++i) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public int write(@NotNull final ByteBuffer src, final long position) throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+            var n = src.remaining();
+            synchronized (node) {
+                var end = position + n;
+                if (end > MAX_SIZE) {
+                    throw new IOException("File too large");
+                }
+                if (end > node.data.length) {
+                    var data = new byte[(int) Math.min(MAX_SIZE, Math.max(end, 2L * node.data.length))];
+                    System.arraycopy(node.data, 0, data, 0, node.size);
+                    node.data = data;
+                }
+                src.get(node.data, (int) position, n);
+                node.size = (int) Math.max(node.size, end);
+            }
+            modified = true;
+            return n;
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            synchronized (node) {
+                return node.size;
+            }
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+            synchronized (node) {
+                if (size < node.size) {
+                    // Writes beyond the new end must find zeros in the gap, not the old content
+                    Arrays.fill(node.data, (int) size, node.size, (byte) 0);
+                    node.size = (int) size;
+                    modified = true;
+                }
+            }
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public void force(final boolean metaData) { }
+
+        @Override
+        public long transferTo(final long position, final long count, @NotNull final WritableByteChannel target)
+        throws IOException {
+            ensureOpen();
+            var pool = FileTransfer.getBufferPool();
+            var buffer = pool.acquire();
+            try {
+                synchronized (node) {
+                    if (position >= node.size) {
+                        return 0;
+                    }
+                    var n = (int) Math.min(Math.min(count, buffer.capacity()), node.size - position);
+                    buffer.put(node.data, (int) position, n).flip();
+                }
+                return target.write(buffer);
+            } finally {
+                pool.release(buffer);
+            }
+        }
+
+        @Override
+        public long transferFrom(@NotNull final ReadableByteChannel src, final long position, final long count)
+        throws IOException {
+            var buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+            var total = 0L;
+            while (total < count) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - total));
+                var n = src.read(buffer);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                total += write(buffer, position + total);
+            }
+            return total;
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            // Mapped buffers always refer to native memory
+            throw new IOException("Memory files can't be mapped");
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            // Only locks held within the VM can conflict, waiting for them wouldn't end
+            return tryLock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            ensureOpen();
+            if (!shared && !writable) {
+                throw new NonWritableChannelException();
+            }
+            var lock = new MemoryFileLock(this, position, size, shared);
+            synchronized (node) {
+                for (var held : node.locks) {
+                    if (held.overlaps(position, size)) {
+                        throw new OverlappingFileLockException();
+                    }
+                }
+                node.locks.add(lock);
+            }
+            return lock;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            synchronized (node) {
+                node.locks.removeIf(lock -> {
+                    if (lock.channel() != this) {
+                        return false;
+                    }
+                    lock.valid = false;
+                    return true;
+                });
+            }
+            if (modified) {
+                node.modified = FileTime.fromMillis(System.currentTimeMillis());
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out listeners for passive data connections.
+ *
+ * All ports of the configured range are bound once at startup and reused, so PASV doesn't pay for
+ * socket setup. A listener is leased by a session until its data connection has been accepted,
+ * the accept timed out or the session ended. Leases which are never used expire and are reclaimed
+ * when the pool runs empty.
+ */
+class PassivePortManager {
+    private static final int BACKLOG = 50;
+
+    private final InetAddress advertisedAddress;
+    /**
+     * @return Address sent to clients in PASV replies, null to use the address the client connected to
+     */
+    public InetAddress getAdvertisedAddress() { return advertisedAddress; }
+
+    private final int timeout;
+    public int getTimeout() { return timeout; }
+
+    private final List<Listener> listeners = new ArrayList<>();
+
+    private final ConcurrentLinkedQueue<Listener> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param bindAddress Local address to bind the listeners to, null for the wildcard address
+     * @param advertisedAddress Address sent to clients (e.g. the external address of a NAT), null to use the address the client connected to
+     * @param minPort First port of the range
+     * @param maxPort Last port of the range
+     * @param timeout Time in milliseconds a client has to open the data connection
+     */
+    public PassivePortManager(final InetAddress bindAddress, final InetAddress advertisedAddress,
+                              final int minPort, final int maxPort, final int timeout) {
+        if (minPort <= 0 || maxPort > 65535 || minPort > maxPort) {
+            throw new IllegalArgumentException("Invalid passive port range");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+
+        this.advertisedAddress = advertisedAddress;
+        this.timeout = timeout;
+
+        for (var port = minPort; port <= maxPort; ++port) {
+            try {
+                var listener = new Listener(bindAddress, port, timeout);
+                listeners.add(listener);
+                free.add(listener);
+            } catch (IOException ex) {
+                // Port in use by somebody else
+                Logger.SERVER.warn("Passive port " + port + " not available: " + ex.getMessage());
+            }
+        }
+        if (listeners.isEmpty()) {
+            throw new IllegalStateException("No passive port available in range " + minPort + "-" + maxPort);
+        }
+    }
+
+    /**
+     * Lease a listener.
+     *
+     * @return null if all listeners are in use
+     */
+    public Lease acquire() {
+        var listener = free.poll();
+        if (listener == null) {
+            listener = reclaimExpired();
+            if (listener == null) {
+                return null;
+            }
+        }
+
+        var lease = new Lease(listener);
+        listener.lease = lease;
+        listener.leases.incrementAndGet();
+        return lease;
+    }
+
+    /**
+     * Take a listener away from a session which leased it but never used it.
+     */
+    private Listener reclaimExpired() {
+        var now = System.currentTimeMillis();
+        for (var listener : listeners) {
+            var lease = listener.lease;
+            if (lease != null && now - lease.leasedAt > timeout && lease.expire()) {
+                listener.expired.incrementAndGet();
+                listener.lease = null;
+                listener.discardPending();
+                return listener;
+            }
+        }
+        return null;
+    }
+
+    private void release(@NotNull final Listener listener) {
+        listener.lease = null;
+        listener.discardPending();
+        free.add(listener);
+    }
+
+    public void close() {
+        for (var listener : listeners) {
+            if (Logger.isDebugEnabled() && listener.getLeases() > 0) {
+                Logger.SERVER.debug(listener.toString());
+            }
+            try {
+                listener.channel.close();
+            } catch (IOException ex) {
+                Logger.SERVER.error("IOException: " + ex.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        var leases = 0L;
+        var accepted = 0L;
+        var timeouts = 0L;
+        var expired = 0L;
+        for (var listener : listeners) {
+            leases += listener.getLeases();
+            accepted += listener.getAccepted();
+            timeouts += listener.getTimeouts();
+            expired += listener.getExpired();
+        }
+        return String.format("PassivePortManager[ports=%d, free=%d, leases=%d, accepted=%d, timeouts=%d, expired=%d]",
+                listeners.size(), free.size(), leases, accepted, timeouts, expired);
+    }
+
+    /**
+     * A bound passive port.
+     */
+    static final class Listener {
+        private final ServerSocketChannel channel;
+        private final int port;
+        public int getPort() { return port; }
+
+        private volatile Lease lease;
+
+        private final AtomicLong leases = new AtomicLong();
+        public long getLeases() { return leases.get(); }
+
+        private final AtomicLong accepted = new AtomicLong();
+        public long getAccepted() { return accepted.get(); }
+
+        private final AtomicLong timeouts = new AtomicLong();
+        public long getTimeouts() { return timeouts.get(); }
+
+        private final AtomicLong expired = new AtomicLong();
+        public long getExpired() { return expired.get(); }
+
+        private Listener(final InetAddress bindAddress, final int port, final int timeout) throws IOException {
+            this.channel = ServerSocketChannel.open();
+            try {
+                channel.socket().setReuseAddress(true);
+                channel.bind(new InetSocketAddress(bindAddress, port), BACKLOG);
+                // Only honoured by accept() of the socket adaptor
+                channel.socket().setSoTimeout(timeout);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            this.port = port;
+        }
+
+        /**
+         * Close connections left in the backlog by clients of a previous lease.
+         */
+        private void discardPending() {
+            try {
+                channel.configureBlocking(false);
+                try {
+                    SocketChannel stale;
+                    while ((stale = channel.accept()) != null) {
+                        stale.close();
+                    }
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException ex) {
+                Logger.SERVER.error("IOException: " + ex.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Listener[port=%d, leases=%d, accepted=%d, timeouts=%d, expired=%d]",
+                    port, getLeases(), getAccepted(), getTimeouts(), getExpired());
+        }
+    }
+
+    /**
+     * A listener leased by a session for one data connection.
+     */
+    final class Lease {
+        private final Listener listener;
+        private final long leasedAt = System.currentTimeMillis();
+        private final AtomicBoolean valid = new AtomicBoolean(true);
+        private boolean accepting = false; // Guarded by this
+
+        private Lease(final Listener listener) {
+            this.listener = listener;
+        }
+
+        public int getPort() { return listener.port; }
+
+        private boolean invalidate() {
+            return valid.compareAndSet(true, false);
+        }
+
+        /**
+         * Invalidate the lease unless the session is already waiting for its data connection.
+         */
+        private synchronized boolean expire() {
+            return !accepting && invalidate();
+        }
+
+        /**
+         * Wait for the data connection and give the listener back.
+         *
+         * @param clientAddress Only connections from this address are accepted, null to accept any
+         * @return Data connection backed by a {@link SocketChannel}
+         */
+        public Socket accept(final InetAddress clientAddress) throws IOException {
+            synchronized (this) {
+                if (!valid.get()) {
+                    throw new IOException("Passive listener on port " + getPort() + " expired");
+                }
+                accepting = true;
+            }
+
+            // Rejected connections don't extend the time the client has
+            var deadline = System.nanoTime() + timeout * 1_000_000L;
+            try {
+                while (true) {
+                    var remaining = (deadline - System.nanoTime()) / 1_000_000;
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Accept timed out");
+                    }
+                    listener.channel.socket().setSoTimeout((int) remaining);
+                    var s = listener.channel.socket().accept();
+                    if (clientAddress == null || clientAddress.equals(s.getInetAddress())) {
+                        listener.accepted.incrementAndGet();
+                        return s;
+                    }
+                    // Somebody else tries to hijack the transfer
+                    Logger.SERVER.warn("Rejected data connection from " + s.getRemoteSocketAddress() + " on passive port " + getPort());
+                    s.close();
+                }
+            } catch (SocketTimeoutException ex) {
+                listener.timeouts.incrementAndGet();
+                throw ex;
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Give the listener back without using it.
+         */
+        public void release() {
+            if (invalidate()) {
+                PassivePortManager.this.release(listener);
+            }
+        }
+    }
+}
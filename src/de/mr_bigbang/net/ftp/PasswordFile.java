@@ -0,0 +1,154 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Users and salted password hashes read from a file.
+ *
+ * One user per line: "username:pbkdf2-sha256:iterations:salt:hash" with salt and hash in Base64.
+ * Empty lines and lines starting with "#" are ignored. Lines are created with
+ * {@code java de.mr_bigbang.net.ftp.PasswordFile username password}.
+ *
+ * The file is read once. Hashes are compared in constant time, unknown users cost as much as
+ * wrong passwords, so the time of a failed login doesn't tell which one it was.
+ */
+final class PasswordFile implements Authenticator {
+    private static final String ALGORITHM = "pbkdf2-sha256";
+    static final int DEFAULT_ITERATIONS = 210000;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private static final class Credentials {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private Credentials(final int iterations, @NotNull final byte[] salt, @NotNull final byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        boolean matches(@NotNull final String password) {
+            return MessageDigest.isEqual(hash, PasswordFile.hash(password, salt, iterations, hash.length));
+        }
+    }
+
+    // Checked instead of the credentials of unknown users
+    private static final Credentials UNKNOWN = new Credentials(DEFAULT_ITERATIONS, new byte[SALT_LENGTH], new byte[HASH_LENGTH]);
+
+    private final Path path;
+    public Path getPath() { return path; }
+
+    private final Map<String, Credentials> users;
+    public int getSize() { return users.size(); }
+
+    /**
+     * Read the users from a file.
+     */
+    PasswordFile(@NotNull final Path path) throws IOException {
+        this.path = path;
+        this.users = read(path);
+    }
+
+    private static Map<String, Credentials> read(@NotNull final Path path) throws IOException {
+        var users = new HashMap<String, Credentials>();
+        var number = 0;
+        for (var line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            ++number;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+
+            var fields = line.split(":", -1);
+            if (fields.length != 5 || fields[0].isEmpty() || !fields[1].equals(ALGORITHM)) {
+                throw new IOException(path + ":" + number + ": Invalid entry");
+            }
+            try {
+                var iterations = Integer.parseInt(fields[2]);
+                if (iterations <= 0) {
+                    throw new IOException(path + ":" + number + ": Invalid iteration count");
+                }
+                var decoder = Base64.getDecoder();
+                users.put(fields[0], new Credentials(iterations, decoder.decode(fields[3]), decoder.decode(fields[4])));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException(path + ":" + number + ": " + ex.getMessage());
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public boolean isKnown(@NotNull final String username) {
+        return users.containsKey(username);
+    }
+
+    @Override
+    public boolean authenticate(@NotNull final String username, @NotNull final String password) {
+        var credentials = users.get(username);
+        if (credentials == null) {
+            UNKNOWN.matches(password);
+            return false;
+        }
+        return credentials.matches(password);
+    }
+
+    /**
+     * @return Line of the password file for the user, with a random salt
+     */
+    static String encode(@NotNull final String username, @NotNull final String password, final int iterations) {
+        var salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        var encoder = Base64.getEncoder();
+        return username + ":" + ALGORITHM + ":" + iterations + ":" + encoder.encodeToString(salt) + ":"
+                + encoder.encodeToString(hash(password, salt, iterations, HASH_LENGTH));
+    }
+
+    private static byte[] hash(@NotNull final String password, @NotNull final byte[] salt, final int iterations, final int length) {
+        var chars = password.toCharArray();
+        var spec = new PBEKeySpec(chars, salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            // Every Java platform has to support it
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PasswordFile[path=%s, users=%d]", getPath(), getSize());
+    }
+
+    /**
+     * Print the line of a user for the password file.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: PasswordFile username password");
+            System.exit(1);
+        }
+        if (args[0].isEmpty() || args[0].contains(":")) {
+            System.err.println("Username must not be empty or contain ':'");
+            System.exit(1);
+        }
+        System.out.println(encode(args[0], args[1], DEFAULT_ITERATIONS));
+    }
+}
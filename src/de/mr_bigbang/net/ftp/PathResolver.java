@@ -0,0 +1,139 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the pathnames of one session.
+ *
+ * A session sees the directory tree below its root, which is "/" for the session. Pathnames are
+ * resolved on strings, ".." never leads above the root. Symbolic links leading out of it are
+ * caught by {@link ConfinedFileSystem}. Recently resolved pathnames and directories changed into
+ * are remembered, repeated CWD, PWD and LIST don't touch the file system.
+ *
+ * Not thread-safe, used by the session thread only.
+ */
+final class PathResolver {
+    private static final int CACHE_SIZE = 64;
+
+    private final VirtualFileSystem fileSystem;
+
+    private String root = ""; // Path on the file system, "" for its root
+    /**
+     * @return Path of the root on the file system, "/" if the session isn't confined
+     */
+    public String getRoot() { return root.isEmpty() ? "/" : root; }
+
+    private String currentDirectory;
+    /**
+     * @return Current directory as seen by the session
+     */
+    public String getCurrentDirectory() { return currentDirectory; }
+
+    // Current directory + "\0" + pathname -> path seen by the session
+    private final Map<String, String> resolved = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // Paths seen by the session known to be directories
+    private final Map<String, Boolean> directories = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    PathResolver(@NotNull final VirtualFileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+        this.currentDirectory = fileSystem.getDefaultDirectory();
+    }
+
+    /**
+     * Confine the session to a directory and change to it.
+     *
+     * @param root Path on the file system, null to give access to the whole file system and start
+     *             in its default directory
+     */
+    void setRoot(final String root) {
+        var r = root == null ? "/" : VirtualFileSystem.resolve("/", root);
+        this.root = r.equals("/") ? "" : r;
+        this.currentDirectory = root == null ? fileSystem.getDefaultDirectory() : "/";
+        resolved.clear();
+        directories.clear();
+    }
+
+    /**
+     * @param pathname Absolute pathname or pathname relative to the current directory
+     * @return Path as seen by the session
+     */
+    String resolve(@NotNull final String pathname) {
+        var key = currentDirectory + '\0' + pathname;
+        var path = resolved.get(key);
+        if (path == null) {
+            path = VirtualFileSystem.resolve(currentDirectory, pathname);
+            resolved.put(key, path);
+        }
+        return path;
+    }
+
+    /**
+     * @param pathname Absolute pathname or pathname relative to the current directory
+     * @return Path on the file system, always below the root
+     */
+    String locate(@NotNull final String pathname) {
+        return toFileSystemPath(resolve(pathname));
+    }
+
+    /**
+     * @param path Path as seen by the session
+     * @return Path on the file system
+     */
+    String toFileSystemPath(@NotNull final String path) {
+        if (root.isEmpty()) {
+            return path;
+        }
+        return path.equals("/") ? root : root + path;
+    }
+
+    /**
+     * Change the current directory.
+     *
+     * @param pathname Absolute pathname or pathname relative to the current directory
+     * @return false if it isn't a directory
+     */
+    boolean changeDirectory(@NotNull final String pathname) {
+        var path = resolve(pathname);
+        if (!directories.containsKey(path)) {
+            try {
+                if (!fileSystem.stat(toFileSystemPath(path), BasicFileAttributes.class).isDirectory()) {
+                    return false;
+                }
+            } catch (IOException ex) {
+                return false;
+            }
+            directories.put(path, Boolean.TRUE);
+        }
+        currentDirectory = path;
+        return true;
+    }
+
+    /**
+     * Forget the known directories after the session removed or renamed one. Changes by other
+     * sessions only show once the directory is used.
+     */
+    void invalidate() {
+        directories.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PathResolver{root=%s, currentDirectory=%s}", getRoot(), currentDirectory);
+    }
+}
@@ -0,0 +1,90 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Collects replies for the control connection and writes them in batches.
+ *
+ * Nothing is sent until {@link #flush()} is called, so pipelined commands and multi-line replies
+ * go out in a single write. Replies not answering the current command (see {@link #writeAsync})
+ * are held back while a multi-line reply is open, so they never end up between its lines.
+ */
+class ReplyWriter {
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /**
+     * A batch growing beyond this size is written early.
+     */
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    private final OutputStream os;
+    private byte[] buffer = new byte[1024];
+    private int count = 0;
+    private boolean multiLine = false; // Lines written, but not the reply terminating them
+    private final ArrayList<FtpReply> deferred = new ArrayList<>();
+
+    public ReplyWriter(@NotNull final OutputStream os) {
+        this.os = os;
+    }
+
+    public void write(@NotNull final FtpReply reply) throws IOException {
+        append(reply.getBytes());
+        multiLine = false;
+        for (var r : deferred) {
+            append(r.getBytes());
+        }
+        deferred.clear();
+    }
+
+    /**
+     * Write a reply from another thread, e.g. of a segment sent in the background.
+     *
+     * @return false if the reply is held back until the open multi-line reply is complete
+     */
+    public boolean writeAsync(@NotNull final FtpReply reply) throws IOException {
+        if (multiLine) {
+            deferred.add(reply);
+            return false;
+        }
+        write(reply);
+        return true;
+    }
+
+    /**
+     * Write a line of a multi-line reply.
+     *
+     * @param line Line without CRLF
+     */
+    public void writeLine(@NotNull final String line) throws IOException {
+        append(line.getBytes(CHARSET));
+        append(CRLF);
+        multiLine = true;
+    }
+
+    public void flush() throws IOException {
+        if (count > 0) {
+            os.write(buffer, 0, count);
+            count = 0;
+        }
+        os.flush();
+    }
+
+    private void append(final byte[] bytes) throws IOException {
+        if (count > 0 && count + bytes.length > MAX_BATCH_SIZE) {
+            flush();
+        }
+        if (count + bytes.length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + bytes.length));
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+}
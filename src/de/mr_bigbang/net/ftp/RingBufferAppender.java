@@ -0,0 +1,149 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands log records to a background thread that writes them to stdout/stderr.
+ *
+ * Sessions never wait for the console: records are put into a fixed ring of preallocated slots
+ * without locking. If the writer can't keep up, new records are dropped and counted.
+ */
+class RingBufferAppender implements Runnable {
+    private static final class Record {
+        private Logger.Level level;
+        private long timestamp;
+        private String context;
+        private String message;
+    }
+
+    private final Record[] records;
+    private final int mask;
+
+    // Sequence number + 1 of the record published in each slot
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0;
+    private volatile boolean waiting = false;
+
+    private final AtomicLong dropped = new AtomicLong();
+    public long getDropped() { return dropped.get(); }
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Thread thread;
+
+    /**
+     * @param capacity Number of records buffered, rounded up to a power of two
+     */
+    public RingBufferAppender(final int capacity, @NotNull final PrintStream out, @NotNull final PrintStream err) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+
+        var size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.records = new Record[size];
+        for (var i = 0; i < size; ++i) {
+            records[i] = new Record();
+        }
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+
+        this.out = out;
+        this.err = err;
+        this.thread = new Thread(this, "ftp-log-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::awaitDrained, "ftp-log-drain"));
+    }
+
+    /**
+     * Give the writer up to a second to write the remaining records when the JVM exits.
+     */
+    private void awaitDrained() {
+        var deadline = System.nanoTime() + 1_000_000_000L;
+        while (consumed < claimed.get() && System.nanoTime() < deadline) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(1_000_000L);
+        }
+        out.flush();
+        err.flush();
+    }
+
+    /**
+     * @return false if the record was dropped because the buffer is full
+     */
+    public boolean append(@NotNull final Logger.Level level, final String context, @NotNull final String message) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= records.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        var index = (int) (sequence & mask);
+        var r = records[index];
+        r.level = level;
+        r.timestamp = System.currentTimeMillis();
+        r.context = context;
+        r.message = message;
+        published.set(index, sequence + 1);
+
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        var sequence = consumed;
+        long reportedDrops = 0;
+        while (true) {
+            var index = (int) (sequence & mask);
+            if (published.get(index) != sequence + 1) {
+                // Nothing to write, flush and wait for the next record
+                out.flush();
+                err.flush();
+
+                var drops = dropped.get();
+                if (drops != reportedDrops) {
+                    err.printf("%s WARN  %d log records dropped%n", Instant.now(), drops - reportedDrops);
+                    reportedDrops = drops;
+                }
+
+                waiting = true;
+                if (published.get(index) != sequence + 1) {
+                    LockSupport.parkNanos(this, 100_000_000L);
+                }
+                waiting = false;
+                continue;
+            }
+
+            var r = records[index];
+            var stream = r.level.compareTo(Logger.Level.WARN) >= 0 ? err : out;
+            stream.print(Instant.ofEpochMilli(r.timestamp));
+            stream.print(' ');
+            stream.print(r.level.getLabel());
+            stream.print(' ');
+            if (r.context != null) {
+                stream.print(r.context);
+                stream.print(' ');
+            }
+            stream.println(r.message);
+
+            // Release the slot
+            r.context = null;
+            r.message = null;
+            consumed = ++sequence;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Segments of files retrieved in parallel by one session (OPTS RETR PARALLEL).
+ *
+ * Each segment is a ranged RETR over its own passive data connection. All segments of the same
+ * file read from one {@link FileChannel}, opened by the first and closed by the last segment.
+ * Reads are positional, so the segments don't interfere with each other.
+ */
+final class SegmentedRetrieval {
+    /**
+     * A range of a file sent over one data connection.
+     */
+    static final class Segment {
+        private final String path;
+        public String getPath() { return path; }
+
+        private final long start;
+        public long getStart() { return start; }
+
+        private final long length;
+        /**
+         * @return Bytes requested, Long.MAX_VALUE for the rest of the file
+         */
+        public long getLength() { return length; }
+
+        private final SharedChannel channel;
+        private final long started = System.nanoTime();
+        private volatile long sent = 0;
+        /**
+         * @return Bytes sent, set once the segment is complete
+         */
+        public long getSent() { return sent; }
+
+        private volatile Socket socket;
+
+        private Segment(@NotNull final String path, final long start, final long length, @NotNull final SharedChannel channel) {
+            this.path = path;
+            this.start = start;
+            this.length = length;
+            this.channel = channel;
+        }
+
+        /**
+         * @return Milliseconds since the segment has been requested
+         */
+        public long getDuration() {
+            return (System.nanoTime() - started) / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Segment[path=%s, start=%d, sent=%d, duration=%d]", getPath(), getStart(), getSent(), getDuration());
+        }
+    }
+
+    private static final class SharedChannel {
+        private final FileChannel channel;
+        private int segments = 0;
+
+        private SharedChannel(final FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Map<String, SharedChannel> channels = new HashMap<>(); // Guarded by this
+    private final Set<Segment> active = new HashSet<>(); // Guarded by this
+
+    public synchronized int getActiveSegments() { return active.size(); }
+
+    /**
+     * Register a segment, opening the file unless other segments are reading it already.
+     *
+     * @param path Virtual path of the file, the session always uses the same file system
+     * @param length Bytes to send, Long.MAX_VALUE for the rest of the file
+     */
+    synchronized Segment open(@NotNull final VirtualFileSystem fileSystem, @NotNull final String path, final long start,
+                              final long length)
+    throws IOException {
+        var shared = channels.get(path);
+        if (shared == null) {
+            shared = new SharedChannel(fileSystem.openRead(path));
+            channels.put(path, shared);
+        }
+        ++shared.segments;
+
+        var segment = new Segment(path, start, length, shared);
+        active.add(segment);
+        return segment;
+    }
+
+    /**
+     * Accept the data connection of the segment and send its range.
+     *
+     * @param throttle Rate limit of the session, null for none
+     * @return Number of bytes sent
+     */
+    long transfer(@NotNull final Segment segment, @NotNull final PassivePortManager.Lease lease, final InetAddress clientAddress,
+                  final Throttle throttle)
+    throws IOException {
+        try (var s = lease.accept(clientAddress)) {
+            segment.socket = s;
+            if (!isActive(segment)) {
+                // Aborted while waiting for the connection
+                throw new IOException("Segment aborted");
+            }
+            segment.sent = FileTransfer.send(segment.channel.channel, segment.start, segment.length, s.getChannel(), throttle);
+            return segment.sent;
+        } finally {
+            segment.socket = null;
+        }
+    }
+
+    private synchronized boolean isActive(@NotNull final Segment segment) {
+        return active.contains(segment);
+    }
+
+    /**
+     * Unregister a segment, closing the file if it was the last segment reading it.
+     */
+    void close(@NotNull final Segment segment) {
+        FileChannel unused = null;
+        synchronized (this) {
+            if (!active.remove(segment)) {
+                return;
+            }
+            if (--segment.channel.segments == 0) {
+                channels.remove(segment.path);
+                unused = segment.channel.channel;
+            }
+        }
+
+        if (unused != null) {
+            try {
+                unused.close();
+            } catch (IOException ex) {
+                Logger.SERVER.error("IOException: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close the data connections of all segments, e.g. when the session ends.
+     */
+    void abort() {
+        ArrayList<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList<>(active);
+        }
+        for (var segment : segments) {
+            var s = segment.socket;
+            close(segment);
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ex) {
+                    Logger.SERVER.error("IOException: " + ex.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Control connection engine multiplexing all sessions on a few event loop threads.
+ *
+ * The event loops read CRLF terminated commands from non-blocking channels. Complete commands are
+ * handed to the {@link SessionExecutor}, one command per session at a time, so an idle session
+ * doesn't occupy any thread. Replies are written directly if the socket accepts them, otherwise the
+ * event loop flushes them as soon as the socket becomes writable.
+ */
+class SelectorEngine {
+    /**
+     * Longest command line accepted, including CRLF.
+     */
+    static final int MAX_LINE_LENGTH = 4096;
+
+    // Same charset as used by the blocking FtpServer
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final SessionExecutor executor;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    public SelectorEngine(@NotNull final SessionExecutor executor, final int eventLoopCount) throws IOException {
+        if (eventLoopCount <= 0) {
+            throw new IllegalArgumentException("Event loop count must be positive");
+        }
+
+        this.executor = executor;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (var i = 0; i < eventLoopCount; ++i) {
+            eventLoops[i] = new EventLoop(i);
+        }
+    }
+
+    public void start() {
+        for (var loop : eventLoops) {
+            loop.thread.start();
+        }
+    }
+
+    public void shutdown() {
+        for (var loop : eventLoops) {
+            loop.thread.interrupt();
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Take over a freshly accepted control connection.
+     *
+     * The caller must have reserved a session slot with {@link SessionExecutor#tryAcquireSession()}.
+     *
+     * @param channel Control connection
+     */
+    public void register(@NotNull final SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+
+        var loop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+        var session = new Session(channel, loop);
+        session.dispatch(session.server::greet);
+
+        loop.pending.add(session);
+        loop.selector.wakeup();
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Session> pending = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(final int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "ftp-event-loop-" + index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!thread.isInterrupted()) {
+                    selector.select();
+                    registerPending();
+
+                    var keys = selector.selectedKeys();
+                    for (var key : keys) {
+                        var session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (IOException ex) {
+                            Logger.SERVER.error("IOException: " + ex.getMessage());
+                            session.close();
+                        }
+                    }
+                    keys.clear();
+                }
+            } catch (IOException ex) {
+                Logger.SERVER.error("IOException: " + ex.getMessage());
+            } finally {
+                for (var key : selector.keys()) {
+                    ((Session) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    Logger.SERVER.error("IOException: " + ex.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            Session session;
+            while ((session = pending.poll()) != null) {
+                try {
+                    synchronized (session) {
+                        var ops = session.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                        session.key = session.channel.register(selector, ops, session);
+                    }
+                } catch (ClosedChannelException ex) {
+                    // Session ended before it has been registered
+                    session.close();
+                }
+            }
+        }
+    }
+
+    private final class Session {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final FtpServer server;
+        private SelectionKey key; // Guarded by this
+
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        private boolean discarding = false; // Skipping the rest of an overlong line
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // Guarded by this
+
+        private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Session(final SocketChannel channel, final EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.server = new FtpServer(channel.socket(), new ReplyStream());
+        }
+
+        /**
+         * Read available data and dispatch all complete command lines.
+         */
+        private void read() throws IOException {
+            if (channel.read(in) == -1) {
+                // Client closed the connection
+                key.interestOps(0);
+                dispatch(() -> server.parseCommand(null));
+                return;
+            }
+
+            in.flip();
+            var start = in.position();
+            for (var i = start; i < in.limit(); ++i) {
+                if (in.get(i) == '\n') {
+                    if (discarding) {
+                        discarding = false;
+                    } else {
+                        var end = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+                        var line = new String(in.array(), in.arrayOffset() + start, end - start, CHARSET);
+                        dispatch(() -> server.parseCommand(line));
+                    }
+                    start = i + 1;
+                }
+            }
+            in.position(start);
+            in.compact();
+
+            if (!in.hasRemaining()) {
+                // No line break within MAX_LINE_LENGTH bytes
+                in.clear();
+                if (!discarding) {
+                    discarding = true;
+                    dispatch(() -> server.sendReply(new FtpReply(500, "Command line too long.")));
+                }
+            }
+        }
+
+        /**
+         * Queue a task for this session. Tasks run one after another in the order they were queued.
+         */
+        private void dispatch(@NotNull final Runnable command) {
+            commands.add(command);
+            schedule();
+        }
+
+        private void schedule() {
+            if (running.compareAndSet(false, true)) {
+                executor.submit(this::runCommands);
+            }
+        }
+
+        private void runCommands() {
+            try {
+                Runnable command;
+                while ((command = commands.poll()) != null) {
+                    command.run();
+                }
+                // Replies to pipelined commands are sent in one batch
+                server.flushReplies();
+            } finally {
+                running.set(false);
+            }
+
+            if (!channel.isOpen()) {
+                // QUIT or connection lost
+                close();
+            } else if (!commands.isEmpty()) {
+                // Command arrived after the queue has been drained
+                schedule();
+            }
+        }
+
+        /**
+         * Write replies, queue what the socket doesn't accept right now.
+         *
+         * @param reply Replies, only valid during this call
+         */
+        private synchronized void write(@NotNull final ByteBuffer reply) throws IOException {
+            if (out.isEmpty()) {
+                channel.write(reply);
+            }
+            if (reply.hasRemaining()) {
+                out.add(ByteBuffer.allocate(reply.remaining()).put(reply).flip());
+                if (key != null) {
+                    key.interestOpsOr(SelectionKey.OP_WRITE);
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        /**
+         * Write queued replies once the socket is writable again.
+         */
+        private synchronized void flush() throws IOException {
+            ByteBuffer reply;
+            while ((reply = out.peek()) != null) {
+                channel.write(reply);
+                if (reply.hasRemaining()) {
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        }
+
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.SERVER.error("IOException: " + ex.getMessage());
+            }
+            server.closeDataConnections();
+            executor.releaseSession();
+            Logger.SERVER.info("Command connection closed");
+        }
+
+        /**
+         * Passes the batches written by FtpServer's {@link ReplyWriter} on to the channel.
+         */
+        private final class ReplyStream extends OutputStream {
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                Session.this.write(ByteBuffer.wrap(b, off, len));
+            }
+        }
+    }
+}
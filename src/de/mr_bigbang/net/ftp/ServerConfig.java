@@ -0,0 +1,376 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Settings of the server, read from a properties file.
+ *
+ * A config is immutable. The current one is shared by all sessions through {@link #get()} and
+ * replaced as a whole when the file is reloaded, so a session never sees half of an update.
+ * Missing keys keep their defaults, see ftpserver.properties for all keys.
+ */
+final class ServerConfig {
+    static final ServerConfig DEFAULTS = new ServerConfig(new Properties());
+
+    private static final AtomicReference<ServerConfig> CURRENT = new AtomicReference<>(DEFAULTS);
+
+    /**
+     * @return Config of the server right now
+     */
+    static ServerConfig get() { return CURRENT.get(); }
+
+    /**
+     * @return Config replaced
+     */
+    static ServerConfig set(@NotNull final ServerConfig config) { return CURRENT.getAndSet(config); }
+
+    //region Properties
+    private final int port;
+    public int getPort() { return port; }
+
+    private final Main.Engine engine;
+    public Main.Engine getEngine() { return engine; }
+
+    private final SessionExecutor.ThreadType threadType;
+    public SessionExecutor.ThreadType getThreadType() { return threadType; }
+
+    private final int maxSessions;
+    public int getMaxSessions() { return maxSessions; }
+
+    private final int eventLoops;
+    public int getEventLoops() { return eventLoops; }
+
+    private final boolean strictMode; // Prevent non-compliant behaviour (like LIST -a)
+    public boolean getStrictMode() { return strictMode; }
+
+    private final boolean anonymousLogin;
+    public boolean getAnonymousLogin() { return anonymousLogin; }
+
+    private final Main.Storage storage;
+    public Main.Storage getStorage() { return storage; }
+
+    private final List<String> shardMounts; // Directories with the same directory tree, e.g. one per disk
+    public List<String> getShardMounts() { return shardMounts; }
+
+    private final Map<String, String> userRoots; // Username -> directory the user is confined to
+    public Map<String, String> getUserRoots() { return userRoots; }
+
+    private final String defaultRoot; // Directory other users are confined to, null: whole file system
+    public String getDefaultRoot() { return defaultRoot; }
+
+    private final String passwordFile; // See PasswordFile, anonymous logins only if it doesn't exist
+    public String getPasswordFile() { return passwordFile; }
+
+    private final int credentialCacheSize; // 0 disables the cache
+    public int getCredentialCacheSize() { return credentialCacheSize; }
+
+    private final long credentialCacheTtl; // Milliseconds
+    public long getCredentialCacheTtl() { return credentialCacheTtl; }
+
+    private final boolean loginThrottle;
+    public boolean getLoginThrottle() { return loginThrottle; }
+
+    private final int loginFreeAttempts;
+    public int getLoginFreeAttempts() { return loginFreeAttempts; }
+
+    private final long loginBaseDelay; // Milliseconds
+    public long getLoginBaseDelay() { return loginBaseDelay; }
+
+    private final long loginMaxDelay; // Milliseconds
+    public long getLoginMaxDelay() { return loginMaxDelay; }
+
+    private final long loginFailureHalfLife; // Milliseconds
+    public long getLoginFailureHalfLife() { return loginFailureHalfLife; }
+
+    private final int loginBanThreshold; // 0 to never ban
+    public int getLoginBanThreshold() { return loginBanThreshold; }
+
+    private final long loginBanDuration; // Milliseconds
+    public long getLoginBanDuration() { return loginBanDuration; }
+
+    private final int bufferSize; // Data connection buffers, 256 KB+ for 10 GbE
+    public int getBufferSize() { return bufferSize; }
+
+    private final int bufferPoolCapacity; // Direct buffers at most
+    public int getBufferPoolCapacity() { return bufferPoolCapacity; }
+
+    private final String passiveBindAddress; // null: all local addresses
+    public String getPassiveBindAddress() { return passiveBindAddress; }
+
+    private final String passiveAdvertisedAddress; // External address behind NAT, null: address the client connected to
+    public String getPassiveAdvertisedAddress() { return passiveAdvertisedAddress; }
+
+    private final int passivePortMin;
+    public int getPassivePortMin() { return passivePortMin; }
+
+    private final int passivePortMax;
+    public int getPassivePortMax() { return passivePortMax; }
+
+    private final int passiveTimeout; // Milliseconds to wait for passive data connections
+    public int getPassiveTimeout() { return passiveTimeout; }
+
+    private final long listingCacheSize; // Bytes, 0 disables the cache
+    public long getListingCacheSize() { return listingCacheSize; }
+
+    private final int attributeCacheSize; // Files, 0 disables the cache
+    public int getAttributeCacheSize() { return attributeCacheSize; }
+
+    private final long attributeCacheTtl; // Milliseconds
+    public long getAttributeCacheTtl() { return attributeCacheTtl; }
+
+    private final long restartMarkerInterval; // Bytes between restart markers in MODE B, 0 for none
+    public long getRestartMarkerInterval() { return restartMarkerInterval; }
+
+    // Bytes per second, 0 for unlimited
+    private final long globalDownloadRate;
+    public long getGlobalDownloadRate() { return globalDownloadRate; }
+
+    private final long globalUploadRate;
+    public long getGlobalUploadRate() { return globalUploadRate; }
+
+    private final long userDownloadRate; // All sessions of a user together
+    public long getUserDownloadRate() { return userDownloadRate; }
+
+    private final long userUploadRate;
+    public long getUserUploadRate() { return userUploadRate; }
+
+    private final long sessionDownloadRate;
+    public long getSessionDownloadRate() { return sessionDownloadRate; }
+
+    private final long sessionUploadRate;
+    public long getSessionUploadRate() { return sessionUploadRate; }
+
+    private final int maxParallelSegments; // Data connections per session for OPTS RETR PARALLEL, 1 disables it
+    public int getMaxParallelSegments() { return maxParallelSegments; }
+
+    private final Logger.Level logLevel; // TRACE logs every command and reply
+    public Logger.Level getLogLevel() { return logLevel; }
+    //endregion
+
+    private ServerConfig(@NotNull final Properties p) {
+        port = getInt(p, "port", 21);
+        engine = getEnum(p, "engine", Main.Engine.BLOCKING);
+        threadType = getEnum(p, "thread.type", SessionExecutor.ThreadType.VIRTUAL);
+        maxSessions = getInt(p, "max.sessions", 10000);
+        eventLoops = getInt(p, "event.loops", Runtime.getRuntime().availableProcessors());
+        strictMode = getBoolean(p, "strict.mode", false);
+        anonymousLogin = getBoolean(p, "anonymous.login", true);
+
+        storage = getEnum(p, "storage", Main.Storage.LOCAL);
+        shardMounts = getList(p, "shard.mounts");
+        defaultRoot = getString(p, "root.default", null);
+        var roots = new HashMap<String, String>();
+        for (var key : p.stringPropertyNames()) {
+            if (key.startsWith("root.user.")) {
+                roots.put(key.substring(10), p.getProperty(key).trim());
+            }
+        }
+        userRoots = Map.copyOf(roots);
+
+        passwordFile = getString(p, "password.file", "ftpusers");
+        credentialCacheSize = getInt(p, "credential.cache.size", 10000);
+        credentialCacheTtl = getLong(p, "credential.cache.ttl", 300000);
+        loginThrottle = getBoolean(p, "login.throttle", true);
+        loginFreeAttempts = getInt(p, "login.free.attempts", 3);
+        loginBaseDelay = getLong(p, "login.base.delay", 1000);
+        loginMaxDelay = getLong(p, "login.max.delay", 60000);
+        loginFailureHalfLife = getLong(p, "login.failure.half.life", 600000);
+        loginBanThreshold = getInt(p, "login.ban.threshold", 20);
+        loginBanDuration = getLong(p, "login.ban.duration", 3600000);
+
+        bufferSize = getInt(p, "buffer.size", FileTransfer.DEFAULT_BUFFER_SIZE);
+        bufferPoolCapacity = getInt(p, "buffer.pool.capacity", FileTransfer.DEFAULT_BUFFER_POOL_CAPACITY);
+        passiveBindAddress = getString(p, "passive.bind.address", null);
+        passiveAdvertisedAddress = getString(p, "passive.advertised.address", null);
+        passivePortMin = getInt(p, "passive.port.min", 50000);
+        passivePortMax = getInt(p, "passive.port.max", 50999);
+        passiveTimeout = getInt(p, "passive.timeout", 30000);
+        listingCacheSize = getLong(p, "listing.cache.size", 16 * 1024 * 1024);
+        attributeCacheSize = getInt(p, "attribute.cache.size", 100000);
+        attributeCacheTtl = getLong(p, "attribute.cache.ttl", 10000);
+        restartMarkerInterval = getLong(p, "restart.marker.interval", BlockMode.DEFAULT_MARKER_INTERVAL);
+
+        globalDownloadRate = getLong(p, "rate.global.download", 0);
+        globalUploadRate = getLong(p, "rate.global.upload", 0);
+        userDownloadRate = getLong(p, "rate.user.download", 0);
+        userUploadRate = getLong(p, "rate.user.upload", 0);
+        sessionDownloadRate = getLong(p, "rate.session.download", 0);
+        sessionUploadRate = getLong(p, "rate.session.upload", 0);
+        maxParallelSegments = getInt(p, "parallel.segments.max", 16);
+        logLevel = getEnum(p, "log.level", Logger.Level.INFO);
+
+        // The other values are checked by the parts using them
+        if (restartMarkerInterval < 0) {
+            throw new IllegalArgumentException("restart.marker.interval: Must not be negative");
+        }
+        if (maxParallelSegments < 1) {
+            throw new IllegalArgumentException("parallel.segments.max: Must be positive");
+        }
+    }
+
+    /**
+     * Read a config file.
+     *
+     * @throws IOException If the file can't be read or contains invalid values
+     */
+    static ServerConfig load(@NotNull final Path path) throws IOException {
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            return new ServerConfig(properties);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(path + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return Keys of settings which differ from previous and only take effect after a restart
+     */
+    List<String> getRestartRequired(@NotNull final ServerConfig previous) {
+        var keys = new ArrayList<String>();
+        addIfChanged(keys, "port", port, previous.port);
+        addIfChanged(keys, "engine", engine, previous.engine);
+        addIfChanged(keys, "thread.type", threadType, previous.threadType);
+        addIfChanged(keys, "max.sessions", maxSessions, previous.maxSessions);
+        addIfChanged(keys, "event.loops", eventLoops, previous.eventLoops);
+        addIfChanged(keys, "storage", storage, previous.storage);
+        addIfChanged(keys, "shard.mounts", shardMounts, previous.shardMounts);
+        addIfChanged(keys, "passive.bind.address", passiveBindAddress, previous.passiveBindAddress);
+        addIfChanged(keys, "passive.advertised.address", passiveAdvertisedAddress, previous.passiveAdvertisedAddress);
+        addIfChanged(keys, "passive.port.min", passivePortMin, previous.passivePortMin);
+        addIfChanged(keys, "passive.port.max", passivePortMax, previous.passivePortMax);
+        addIfChanged(keys, "passive.timeout", passiveTimeout, previous.passiveTimeout);
+        addIfChanged(keys, "listing.cache.size", listingCacheSize, previous.listingCacheSize);
+        addIfChanged(keys, "attribute.cache.size", attributeCacheSize, previous.attributeCacheSize);
+        addIfChanged(keys, "attribute.cache.ttl", attributeCacheTtl, previous.attributeCacheTtl);
+        return keys;
+    }
+
+    /**
+     * @return true if the users are read from the same file and cached the same way as in other
+     */
+    boolean hasSameAuthenticator(@NotNull final ServerConfig other) {
+        return passwordFile.equals(other.passwordFile) && credentialCacheSize == other.credentialCacheSize
+                && credentialCacheTtl == other.credentialCacheTtl;
+    }
+
+    /**
+     * @return true if the login throttle settings are the same as in other
+     */
+    boolean hasSameLoginThrottle(@NotNull final ServerConfig other) {
+        return loginThrottle == other.loginThrottle && loginFreeAttempts == other.loginFreeAttempts
+                && loginBaseDelay == other.loginBaseDelay && loginMaxDelay == other.loginMaxDelay
+                && loginFailureHalfLife == other.loginFailureHalfLife && loginBanThreshold == other.loginBanThreshold
+                && loginBanDuration == other.loginBanDuration;
+    }
+
+    /**
+     * @return true if the rate limits are the same as in other
+     */
+    boolean hasSameRates(@NotNull final ServerConfig other) {
+        return globalDownloadRate == other.globalDownloadRate && globalUploadRate == other.globalUploadRate
+                && userDownloadRate == other.userDownloadRate && userUploadRate == other.userUploadRate
+                && sessionDownloadRate == other.sessionDownloadRate && sessionUploadRate == other.sessionUploadRate;
+    }
+
+    /**
+     * @return true if any rate is limited
+     */
+    boolean hasRates() {
+        return globalDownloadRate > 0 || globalUploadRate > 0 || userDownloadRate > 0 || userUploadRate > 0
+                || sessionDownloadRate > 0 || sessionUploadRate > 0;
+    }
+
+    private static void addIfChanged(@NotNull final List<String> keys, @NotNull final String key, final Object value,
+                                     final Object previous) {
+        if (!Objects.equals(value, previous)) {
+            keys.add(key);
+        }
+    }
+
+    //region Parsing
+    private static String getString(@NotNull final Properties p, @NotNull final String key, final String defaultValue) {
+        var value = p.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    private static int getInt(@NotNull final Properties p, @NotNull final String key, final int defaultValue) {
+        var value = getString(p, key, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + ": Not a number: " + value);
+        }
+    }
+
+    private static long getLong(@NotNull final Properties p, @NotNull final String key, final long defaultValue) {
+        var value = getString(p, key, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + ": Not a number: " + value);
+        }
+    }
+
+    private static boolean getBoolean(@NotNull final Properties p, @NotNull final String key, final boolean defaultValue) {
+        var value = getString(p, key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException(key + ": Neither true nor false: " + value);
+    }
+
+    private static <E extends Enum<E>> E getEnum(@NotNull final Properties p, @NotNull final String key, @NotNull final E defaultValue) {
+        var value = getString(p, key, null);
+        try {
+            return value == null ? defaultValue : Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(key + ": Unknown value: " + value);
+        }
+    }
+
+    /**
+     * @return Comma separated values
+     */
+    private static List<String> getList(@NotNull final Properties p, @NotNull final String key) {
+        var value = getString(p, key, null);
+        if (value == null) {
+            return List.of();
+        }
+        var list = new ArrayList<String>();
+        for (var item : value.split(",")) {
+            if (!item.isBlank()) {
+                list.add(item.trim());
+            }
+        }
+        return List.copyOf(list);
+    }
+    //endregion
+
+    @Override
+    public String toString() {
+        return String.format("ServerConfig[port=%d, engine=%s, threadType=%s, maxSessions=%d, storage=%s, logLevel=%s]",
+                getPort(), getEngine(), getThreadType(), getMaxSessions(), getStorage(), getLogLevel());
+    }
+}
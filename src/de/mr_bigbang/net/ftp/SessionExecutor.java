@@ -0,0 +1,135 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs FTP sessions and limits how many of them are active at the same time.
+ *
+ * Every blocking session keeps its own thread. With virtual threads (JDK 21+) that thread is
+ * cheap, otherwise a bounded pool of reusable platform threads is used. The {@link SelectorEngine}
+ * only borrows a thread while a command is being processed.
+ */
+class SessionExecutor {
+    enum ThreadType {
+        VIRTUAL,
+        PLATFORM,
+    }
+
+    private final ExecutorService executor;
+
+    private final ThreadType threadType;
+    public ThreadType getThreadType() { return threadType; }
+
+    private final int maxSessions;
+    public int getMaxSessions() { return maxSessions; }
+
+    private final Semaphore sessions;
+    public int getActiveSessions() { return maxSessions - sessions.availablePermits(); }
+
+    /**
+     * @param threadType Preferred type of threads. Falls back to platform threads if virtual threads are not available.
+     * @param maxSessions Maximum number of concurrent sessions, also the size of the platform thread pool
+     */
+    public SessionExecutor(@NotNull final ThreadType threadType, final int maxSessions) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("Maximum session count must be positive");
+        }
+
+        var virtualExecutor = threadType == ThreadType.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.threadType = ThreadType.VIRTUAL;
+        } else {
+            this.executor = newPlatformThreadExecutor(maxSessions);
+            this.threadType = ThreadType.PLATFORM;
+        }
+
+        this.maxSessions = maxSessions;
+        this.sessions = new Semaphore(maxSessions);
+    }
+
+    /**
+     * Run the session if the maximum session count isn't reached yet.
+     *
+     * @param session Session to run
+     * @return false if the session was rejected
+     */
+    public boolean execute(@NotNull final Runnable session) {
+        if (!tryAcquireSession()) {
+            return false;
+        }
+
+        try {
+            submit(() -> {
+                try {
+                    session.run();
+                } finally {
+                    releaseSession();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            releaseSession();
+            return false;
+        }
+    }
+
+    /**
+     * Reserve a slot for a session that doesn't run as a single task (see {@link SelectorEngine}).
+     *
+     * @return false if the maximum session count is reached
+     */
+    public boolean tryAcquireSession() {
+        return sessions.tryAcquire();
+    }
+
+    public void releaseSession() {
+        sessions.release();
+    }
+
+    /**
+     * Run a task without reserving a session slot.
+     */
+    public void submit(@NotNull final Runnable task) {
+        executor.execute(task);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Virtual threads are only available on JDK 21+, so they have to be looked up at runtime.
+     *
+     * @return null if virtual threads are not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | UnsupportedOperationException ex) {
+            // JDK < 19 or preview features disabled
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformThreadExecutor(final int poolSize) {
+        var count = new AtomicInteger();
+        // The semaphore already limits the number of sessions, so tasks only queue up for the short
+        // moment a finished session needs to hand its thread back
+        var pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "ftp-session-" + count.incrementAndGet()));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,261 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Spreads the files over several mount points, e.g. one per disk.
+ *
+ * The directory tree exists on every mount point, each file is stored on the mount point chosen
+ * by the hash of its name. Hashing the name rather than the whole path keeps renaming a directory
+ * cheap, the files in it stay where they are.
+ */
+final class ShardedFileSystem implements VirtualFileSystem {
+    private final Path[] mounts;
+    private final boolean posix;
+
+    /**
+     * @param mounts Directories to spread the files over, all with the same directory tree
+     */
+    ShardedFileSystem(@NotNull final List<Path> mounts) {
+        if (mounts.isEmpty()) {
+            throw new IllegalArgumentException("No mount points");
+        }
+        this.mounts = new Path[mounts.size()];
+        for (var i = 0; i < this.mounts.length; ++i) {
+            this.mounts[i] = mounts.get(i).toAbsolutePath().normalize();
+        }
+        this.posix = this.mounts[0].getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * @return Index of the mount point storing a file
+     */
+    int getShard(@NotNull final String name) {
+        // Spread the bits of String.hashCode, similar names differ in the low bits only
+        var h = name.hashCode() * 0x9e3779b9;
+        return Math.floorMod(h ^ (h >>> 16), mounts.length);
+    }
+
+    private Path resolve(final int shard, @NotNull final String path) throws NoSuchFileException {
+        return LocalFileSystem.resolve(mounts[shard], path);
+    }
+
+    /**
+     * @return Location of a file, directories exist there as well
+     */
+    private Path locate(@NotNull final String path) throws NoSuchFileException {
+        return resolve(getShard(VirtualFileSystem.getName(path)), path);
+    }
+
+    /**
+     * Directories exist on every mount point, a link in any of them may lead elsewhere.
+     */
+    @Override
+    public String toRealPath(@NotNull final String path) throws IOException {
+        var shard = getShard(VirtualFileSystem.getName(path));
+        var real = toRealPath(shard, path);
+        if (Files.isDirectory(locate(path))) {
+            for (var i = 0; i < mounts.length; ++i) {
+                var other = i == shard ? real : toRealPath(i, path);
+                if (!other.equals(real)) {
+                    return other;
+                }
+            }
+        }
+        return real;
+    }
+
+    private String toRealPath(final int shard, @NotNull final String path) throws IOException {
+        var virtual = LocalFileSystem.toVirtualPath(mounts[shard].toRealPath(), LocalFileSystem.toRealPath(resolve(shard, path)));
+        if (virtual == null) {
+            throw new AccessDeniedException(path);
+        }
+        return virtual;
+    }
+
+    @Override
+    public boolean isPosix() {
+        return posix;
+    }
+
+    @Override
+    public FileChannel openRead(@NotNull final String path) throws IOException {
+        return FileChannel.open(locate(path), StandardOpenOption.READ);
+    }
+
+    @Override
+    public FileChannel openWrite(@NotNull final String path) throws IOException {
+        return FileChannel.open(locate(path), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    @Override
+    public BasicFileAttributes stat(@NotNull final String path, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        Class<? extends BasicFileAttributes> attributes = posix ? type : BasicFileAttributes.class;
+        return Files.readAttributes(locate(path), attributes);
+    }
+
+    @Override
+    public DirectoryStream<Entry> list(@NotNull final String directory, @NotNull final Class<? extends BasicFileAttributes> type)
+    throws IOException {
+        var attributes = posix ? type : BasicFileAttributes.class;
+        if (!Files.isDirectory(resolve(0, directory))) {
+            throw new NotDirectoryException(directory);
+        }
+
+        // Directories are listed from the first mount point, files from the one they belong to
+        return new DirectoryStream<>() {
+            private DirectoryStream<Entry> stream;
+
+            @Override
+            public Iterator<Entry> iterator() {
+                return new Iterator<>() {
+                    private int shard = -1;
+                    private Iterator<Entry> entries;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (entries == null || !entries.hasNext()) {
+                            if (++shard == mounts.length) {
+                                return false;
+                            }
+                            try {
+                                if (stream != null) {
+                                    stream.close();
+                                }
+                                final var s = shard;
+                                stream = LocalFileSystem.list(resolve(s, directory), attributes,
+                                        e -> e.getAttributes().isDirectory() ? s == 0 : getShard(e.getName()) == s);
+                                entries = stream.iterator();
+                            } catch (NoSuchFileException ex) {
+                                entries = null;
+                            } catch (IOException ex) {
+                                throw new DirectoryIteratorException(ex);
+                            }
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Entry next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return entries.next();
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void mkdir(@NotNull final String path) throws IOException {
+        if (Files.exists(locate(path))) {
+            throw new FileAlreadyExistsException(path);
+        }
+        var created = new ArrayList<Path>();
+        try {
+            for (var i = 0; i < mounts.length; ++i) {
+                var p = resolve(i, path);
+                Files.createDirectory(p);
+                created.add(p);
+            }
+        } catch (IOException ex) {
+            for (var p : created) {
+                Files.deleteIfExists(p);
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public void delete(@NotNull final String path) throws IOException {
+        var location = locate(path);
+        if (!Files.isDirectory(location)) {
+            Files.delete(location);
+            return;
+        }
+
+        // Don't delete it on some mount points only
+        for (var i = 0; i < mounts.length; ++i) {
+            try (var entries = Files.newDirectoryStream(resolve(i, path))) {
+                if (entries.iterator().hasNext()) {
+                    throw new DirectoryNotEmptyException(path);
+                }
+            } catch (NoSuchFileException ex) {
+                // Missing on this mount point
+            }
+        }
+        for (var i = 0; i < mounts.length; ++i) {
+            Files.deleteIfExists(resolve(i, path));
+        }
+    }
+
+    @Override
+    public void rename(@NotNull final String source, @NotNull final String target) throws IOException {
+        var location = locate(source);
+        if (Files.exists(locate(target))) {
+            throw new FileAlreadyExistsException(target);
+        }
+        if (!Files.isDirectory(location)) {
+            // Copies the file if it moves to another mount point
+            Files.move(location, locate(target));
+            return;
+        }
+        for (var i = 0; i < mounts.length; ++i) {
+            var p = resolve(i, source);
+            if (Files.exists(p)) {
+                Files.move(p, resolve(i, target));
+            }
+        }
+    }
+
+    @Override
+    public boolean isAccessible(@NotNull final String path, @NotNull final AccessMode mode) {
+        Path p;
+        try {
+            p = locate(path);
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        switch (mode) {
+            case READ:
+                return Files.isReadable(p);
+            case WRITE:
+                return Files.isWritable(p);
+            default:
+                return Files.isExecutable(p);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ShardedFileSystem{mounts=%s}", List.of(mounts));
+    }
+}
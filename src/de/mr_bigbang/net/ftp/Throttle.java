@@ -0,0 +1,144 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limit of one transfer direction of a session: the token buckets of the session, its user
+ * and the whole server. Every transferred byte is taken from all of them and the transfer waits
+ * for the slowest.
+ */
+final class Throttle {
+    private final TokenBucket[] buckets;
+    private final long chunkSize;
+
+    private Throttle(@NotNull final TokenBucket[] buckets, final long chunkSize) {
+        this.buckets = buckets;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param buckets Buckets to take from, null for levels without limit
+     * @return null if no level is limited
+     */
+    static Throttle of(final TokenBucket... buckets) {
+        var count = 0;
+        var rate = Long.MAX_VALUE;
+        for (var bucket : buckets) {
+            if (bucket != null) {
+                ++count;
+                rate = Math.min(rate, bucket.getRate());
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        var limited = new TokenBucket[count];
+        var i = 0;
+        for (var bucket : buckets) {
+            if (bucket != null) {
+                limited[i++] = bucket;
+            }
+        }
+        return new Throttle(limited, BandwidthLimits.getBurst(rate));
+    }
+
+    /**
+     * @return Bytes to transfer at once, so the rate stays smooth
+     */
+    long getChunkSize() { return chunkSize; }
+
+    /**
+     * Account for bytes transferred and wait if a limit has been exceeded.
+     */
+    void transferred(final long bytes) throws IOException {
+        if (bytes <= 0) {
+            return;
+        }
+        var wait = 0L;
+        for (var bucket : buckets) {
+            wait = Math.max(wait, bucket.take(bytes));
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * Throttle everything written to the channel, closing the returned channel doesn't close it.
+     */
+    WritableByteChannel wrap(@NotNull final WritableByteChannel target) {
+        return new WritableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int write(@NotNull final ByteBuffer src) throws IOException {
+                var count = 0;
+                // Large buffers are split, so a single write doesn't exceed the burst
+                while (src.hasRemaining()) {
+                    var limit = src.limit();
+                    src.limit((int) Math.min(limit, src.position() + chunkSize));
+                    var n = target.write(src);
+                    src.limit(limit);
+                    count += n;
+                    transferred(n);
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open && target.isOpen();
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /**
+     * Throttle everything read from the channel, closing the returned channel doesn't close it.
+     */
+    ReadableByteChannel wrap(@NotNull final ReadableByteChannel source) {
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(@NotNull final ByteBuffer dst) throws IOException {
+                var limit = dst.limit();
+                dst.limit((int) Math.min(limit, dst.position() + chunkSize));
+                try {
+                    var n = source.read(dst);
+                    transferred(n);
+                    return n;
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open && source.isOpen();
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package de.mr_bigbang.net.ftp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the rate of a transfer direction, shared by any number of threads.
+ *
+ * Instead of a token count the bucket stores the time at which it will be full again, so taking
+ * tokens is a single CAS and refilling costs nothing. Tokens are taken for bytes already
+ * transferred and may go into debt, the caller then waits until the debt has been paid off.
+ */
+final class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long rate;
+    /**
+     * @return Bytes per second
+     */
+    public long getRate() { return rate; }
+
+    private final long burstNanos;
+    // Time at which the bucket is full again, in System.nanoTime()
+    private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param rate Bytes per second
+     * @param burst Bytes which may be transferred at once after the bucket has been idle
+     */
+    TokenBucket(final long rate, final long burst) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.rate = rate;
+        this.burstNanos = burst * NANOS_PER_SECOND / rate;
+    }
+
+    /**
+     * Take tokens for bytes transferred.
+     *
+     * @return Nanoseconds to wait before transferring more, 0 if the bucket wasn't empty
+     */
+    long take(final long bytes) {
+        var cost = bytes * NANOS_PER_SECOND / rate;
+        var now = System.nanoTime();
+        while (true) {
+            var current = full.get();
+            // A bucket which has been full since then doesn't hold more than burst tokens
+            var start = current - now < 0 ? now : current;
+            var next = start + cost;
+            if (full.compareAndSet(current, next)) {
+                // Everything beyond burst has to be waited for
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TokenBucket[rate=%d]", getRate());
+    }
+}
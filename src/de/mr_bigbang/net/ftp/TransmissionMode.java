@@ -4,4 +4,5 @@ enum TransmissionMode {
     STREAM,
     BLOCK,
     COMPRESSED,
+    DEFLATE, // MODE Z
 }
\ No newline at end of file
@@ -0,0 +1,268 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Conversion between the local file format and the network representation of TYPE A and TYPE E
+ * (RFC959 3.1.1).
+ *
+ * - ASCII: lines end with CRLF on the network. Local files are expected to end their lines like
+ *   the platform does, on CRLF platforms nothing has to be converted.
+ * - EBCDIC: bytes are translated with code page 037, with NL (0x15) as end of line. Local files
+ *   are Latin-1 with LF line endings.
+ *
+ * Both directions work on the buffers passing by with a lookup table and keep at most one byte of
+ * state, so a CR at the end of one buffer and an LF at the start of the next are handled like any
+ * other CRLF.
+ */
+final class TypeConversion {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte NL = 0x15; // EBCDIC new line
+    private static final boolean LOCAL_CRLF = "\r\n".equals(System.lineSeparator());
+
+    // Code page 037 to Latin-1, index is the EBCDIC byte
+    private static final int[] CP037 = {
+            0x00, 0x01, 0x02, 0x03, 0x9c, 0x09, 0x86, 0x7f, 0x97, 0x8d, 0x8e, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f,
+            0x10, 0x11, 0x12, 0x13, 0x9d, 0x85, 0x08, 0x87, 0x18, 0x19, 0x92, 0x8f, 0x1c, 0x1d, 0x1e, 0x1f,
+            0x80, 0x81, 0x82, 0x83, 0x84, 0x0a, 0x17, 0x1b, 0x88, 0x89, 0x8a, 0x8b, 0x8c, 0x05, 0x06, 0x07,
+            0x90, 0x91, 0x16, 0x93, 0x94, 0x95, 0x96, 0x04, 0x98, 0x99, 0x9a, 0x9b, 0x14, 0x15, 0x9e, 0x1a,
+            0x20, 0xa0, 0xe2, 0xe4, 0xe0, 0xe1, 0xe3, 0xe5, 0xe7, 0xf1, 0xa2, 0x2e, 0x3c, 0x28, 0x2b, 0x7c,
+            0x26, 0xe9, 0xea, 0xeb, 0xe8, 0xed, 0xee, 0xef, 0xec, 0xdf, 0x21, 0x24, 0x2a, 0x29, 0x3b, 0xac,
+            0x2d, 0x2f, 0xc2, 0xc4, 0xc0, 0xc1, 0xc3, 0xc5, 0xc7, 0xd1, 0xa6, 0x2c, 0x25, 0x5f, 0x3e, 0x3f,
+            0xf8, 0xc9, 0xca, 0xcb, 0xc8, 0xcd, 0xce, 0xcf, 0xcc, 0x60, 0x3a, 0x23, 0x40, 0x27, 0x3d, 0x22,
+            0xd8, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0xab, 0xbb, 0xf0, 0xfd, 0xfe, 0xb1,
+            0xb0, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xaa, 0xba, 0xe6, 0xb8, 0xc6, 0xa4,
+            0xb5, 0x7e, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0xa1, 0xbf, 0xd0, 0xdd, 0xde, 0xae,
+            0x5e, 0xa3, 0xa5, 0xb7, 0xa9, 0xa7, 0xb6, 0xbc, 0xbd, 0xbe, 0x5b, 0x5d, 0xaf, 0xa8, 0xb4, 0xd7,
+            0x7b, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0xad, 0xf4, 0xf6, 0xf2, 0xf3, 0xf5,
+            0x7d, 0x4a, 0x4b, 0x4c, 0x4d, 0x4e, 0x4f, 0x50, 0x51, 0x52, 0xb9, 0xfb, 0xfc, 0xf9, 0xfa, 0xff,
+            0x5c, 0xf7, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0xb2, 0xd4, 0xd6, 0xd2, 0xd3, 0xd5,
+            0x30, 0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0xb3, 0xdb, 0xdc, 0xd9, 0xda, 0x9f,
+    };
+
+    private static final byte[] TO_EBCDIC = new byte[256];
+    private static final byte[] FROM_EBCDIC = new byte[256];
+
+    static {
+        for (var i = 0; i < 256; ++i) {
+            FROM_EBCDIC[i] = (byte) CP037[i];
+            TO_EBCDIC[CP037[i]] = (byte) i;
+        }
+        // NL is the end of line (RFC959 3.1.1.2), code page 037 maps it to NEL and LF to 0x25
+        FROM_EBCDIC[NL] = LF;
+        FROM_EBCDIC[0x25] = (byte) 0x85;
+        TO_EBCDIC[LF] = NL;
+        TO_EBCDIC[0x85] = 0x25;
+    }
+
+    private TypeConversion() { }
+
+    /**
+     * @return false if the local format already is the network representation of the type
+     */
+    static boolean isRequired(@NotNull final TypeCode typeCode) {
+        switch (typeCode) {
+            case ASCII:
+                return !LOCAL_CRLF;
+            case EBCDIC:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Converts everything written to it to the network representation. Closing it writes what is
+     * left in the buffer, the data connection itself stays open.
+     */
+    static final class Encoder implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final boolean ebcdic;
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer out = pool.acquire();
+        private boolean lastCr = false;
+        private boolean open = true;
+
+        Encoder(@NotNull final WritableByteChannel target, @NotNull final TypeCode typeCode) {
+            this.target = target;
+            this.ebcdic = typeCode == TypeCode.EBCDIC;
+        }
+
+        @Override
+        public int write(@NotNull final ByteBuffer src) throws IOException {
+            var count = src.remaining();
+            if (ebcdic) {
+                while (src.hasRemaining()) {
+                    if (!out.hasRemaining()) {
+                        flush();
+                    }
+                    var n = Math.min(src.remaining(), out.remaining());
+                    for (var i = 0; i < n; ++i) {
+                        out.put(TO_EBCDIC[src.get() & 0xff]);
+                    }
+                }
+                return count;
+            }
+
+            while (src.hasRemaining()) {
+                if (out.remaining() < 2) {
+                    flush();
+                }
+                // Copy everything up to the next LF, leaving room for a CRLF
+                var start = src.position();
+                var end = Math.min(src.limit(), start + out.remaining() - 1);
+                var i = start;
+                while (i < end && src.get(i) != LF) {
+                    ++i;
+                }
+                if (i > start) {
+                    lastCr = src.get(i - 1) == CR;
+                    var limit = src.limit();
+                    src.limit(i);
+                    out.put(src);
+                    src.limit(limit);
+                }
+                if (i < end) {
+                    src.position(i + 1);
+                    // Lines already ending with CRLF are kept
+                    if (!lastCr) {
+                        out.put(CR);
+                    }
+                    out.put(LF);
+                    lastCr = false;
+                }
+            }
+            return count;
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                target.write(out);
+            }
+            out.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+
+            try {
+                flush();
+            } finally {
+                pool.release(out);
+            }
+        }
+    }
+
+    /**
+     * Converts the data read from the data connection to the local format.
+     */
+    static final class Decoder implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final boolean ebcdic;
+        private final BufferPool pool = FileTransfer.getBufferPool();
+        private final ByteBuffer in = pool.acquire().flip();
+        // CR at the end of the last buffer, dropped if an LF follows
+        private boolean pendingCr = false;
+        private boolean eof = false;
+        private boolean open = true;
+
+        Decoder(@NotNull final ReadableByteChannel source, @NotNull final TypeCode typeCode) {
+            this.source = source;
+            this.ebcdic = typeCode == TypeCode.EBCDIC;
+        }
+
+        @Override
+        public int read(@NotNull final ByteBuffer dst) throws IOException {
+            var start = dst.position();
+            while (dst.hasRemaining()) {
+                if (!in.hasRemaining()) {
+                    if (eof || dst.position() > start) {
+                        // Hand out what we have before blocking again
+                        break;
+                    }
+                    in.clear();
+                    var count = source.read(in);
+                    in.flip();
+                    if (count == -1) {
+                        eof = true;
+                        if (pendingCr) {
+                            dst.put(CR);
+                            pendingCr = false;
+                        }
+                        break;
+                    }
+                    if (count == 0) {
+                        // Non-blocking source or a block mode restart marker
+                        break;
+                    }
+                    continue;
+                }
+
+                if (ebcdic) {
+                    var n = Math.min(in.remaining(), dst.remaining());
+                    for (var i = 0; i < n; ++i) {
+                        dst.put(FROM_EBCDIC[in.get() & 0xff]);
+                    }
+                    continue;
+                }
+
+                if (pendingCr) {
+                    pendingCr = false;
+                    if (in.get(in.position()) != LF) {
+                        dst.put(CR);
+                        continue;
+                    }
+                }
+
+                // Copy everything up to the next CR
+                var position = in.position();
+                var end = Math.min(in.limit(), position + dst.remaining());
+                var i = position;
+                while (i < end && in.get(i) != CR) {
+                    ++i;
+                }
+                var limit = in.limit();
+                in.limit(i);
+                dst.put(in);
+                in.limit(limit);
+                if (i < end) {
+                    in.position(i + 1);
+                    pendingCr = true;
+                }
+            }
+
+            var count = dst.position() - start;
+            return count == 0 && eof ? -1 : count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && source.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The data connection is closed by its owner
+            if (open) {
+                open = false;
+                pool.release(in);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package de.mr_bigbang.net.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+
+/**
+ * Storage behind the FTP commands.
+ *
+ * Paths are virtual: absolute, normalized and separated by "/" (see {@link #resolve}). File
+ * contents are accessed through {@link FileChannel}s, so transfers can use positional and
+ * zero-copy I/O no matter where the data lives.
+ */
+interface VirtualFileSystem {
+    /**
+     * Entry of a directory listing.
+     */
+    final class Entry {
+        private final String name;
+        public String getName() { return name; }
+
+        private final BasicFileAttributes attributes;
+        public BasicFileAttributes getAttributes() { return attributes; }
+
+        Entry(@NotNull final String name, @NotNull final BasicFileAttributes attributes) {
+            this.name = name;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * Open a file for reading.
+     */
+    FileChannel openRead(@NotNull String path) throws IOException;
+
+    /**
+     * Open a file for writing, creating it if it doesn't exist. The content is kept.
+     */
+    FileChannel openWrite(@NotNull String path) throws IOException;
+
+    /**
+     * @param type Attributes to read, backends without POSIX attributes return {@link BasicFileAttributes}
+     */
+    BasicFileAttributes stat(@NotNull String path, @NotNull Class<? extends BasicFileAttributes> type) throws IOException;
+
+    /**
+     * Stream the entries of a directory. Entries vanishing while listing are skipped.
+     *
+     * @param type Attributes to read for each entry, see {@link #stat}
+     */
+    DirectoryStream<Entry> list(@NotNull String directory, @NotNull Class<? extends BasicFileAttributes> type) throws IOException;
+
+    void mkdir(@NotNull String path) throws IOException;
+
+    /**
+     * Delete a file or an empty directory.
+     */
+    void delete(@NotNull String path) throws IOException;
+
+    /**
+     * Rename or move a file or directory, an existing target is not replaced.
+     */
+    void rename(@NotNull String source, @NotNull String target) throws IOException;
+
+    /**
+     * @return false if the server can't access the file that way, e.g. for the perm fact of MLSx
+     */
+    boolean isAccessible(@NotNull String path, @NotNull AccessMode mode);
+
+    /**
+     * @return true if {@link #stat} can return {@link java.nio.file.attribute.PosixFileAttributes}
+     */
+    default boolean isPosix() { return false; }
+
+    /**
+     * @return Directory sessions start in
+     */
+    default String getDefaultDirectory() { return "/"; }
+
+    /**
+     * Path of a file on the default file system, used to cache its attributes and listings and to
+     * watch it for changes.
+     *
+     * @return null if the file isn't stored there as is
+     */
+    default Path toLocalPath(@NotNull final String path) { return null; }
+
+    /**
+     * Path of a file with all symbolic links resolved, see {@link ConfinedFileSystem}. For a file
+     * which doesn't exist yet, the deepest existing directory above it is resolved.
+     *
+     * @return Virtual path, the path itself on backends without links
+     * @throws java.nio.file.AccessDeniedException if a link leads outside the file system
+     */
+    default String toRealPath(@NotNull final String path) throws IOException { return path; }
+
+    /**
+     * Resolve a pathname sent by the client against a directory. "." and ".." are removed, ".."
+     * never leads above "/".
+     *
+     * @param directory Virtual path the pathname is relative to
+     * @param pathname Absolute or relative pathname
+     * @return Virtual path
+     */
+    static String resolve(@NotNull final String directory, @NotNull final String pathname) {
+        var segments = new ArrayDeque<String>();
+        if (!pathname.startsWith("/")) {
+            push(segments, directory);
+        }
+        push(segments, pathname);
+
+        if (segments.isEmpty()) {
+            return "/";
+        }
+        var sb = new StringBuilder();
+        for (var segment : segments) {
+            sb.append('/').append(segment);
+        }
+        return sb.toString();
+    }
+
+    private static void push(@NotNull final ArrayDeque<String> segments, @NotNull final String pathname) {
+        var start = 0;
+        while (start <= pathname.length()) {
+            var end = pathname.indexOf('/', start);
+            if (end == -1) {
+                end = pathname.length();
+            }
+            var segment = pathname.substring(start, end);
+            if (segment.equals("..")) {
+                segments.pollLast();
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.addLast(segment);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @return Last segment of a virtual path, "/" for the root
+     */
+    static String getName(@NotNull final String path) {
+        var separator = path.lastIndexOf('/');
+        return separator == -1 || separator == path.length() - 1 ? path : path.substring(separator + 1);
+    }
+
+    /**
+     * @return Parent of a virtual path, null for the root
+     */
+    static String getParent(@NotNull final String path) {
+        var separator = path.lastIndexOf('/');
+        if (path.equals("/") || separator == -1) {
+            return null;
+        }
+        return separator == 0 ? "/" : path.substring(0, separator);
+    }
+}